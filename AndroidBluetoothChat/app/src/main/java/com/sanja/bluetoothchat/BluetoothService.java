@@ -6,278 +6,388 @@ import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
 import android.os.Message;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Holds up to MAX_LINKS RFCOMM links at once and keeps accepting while
+// connected, so the phone is a mesh node rather than one end of a chat.
+// Every link has its own state, reader thread and batching writer thread.
+// Frames are relayed like on the desktop: a frame id seen before is dropped,
+// anything new is delivered to the UI and forwarded to every other link
+// until its TTL runs out. Payloads are forwarded without being decrypted.
 public class BluetoothService {
     private static final UUID APP_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-800c29f3c000");
     private static final String APP_NAME = "BluetoothChatApp";
+    // An RFCOMM piconet has at most seven active peers.
+    private static final int MAX_LINKS = 7;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int MAX_BATCH_FRAMES = 32;
+    private static final int TTL = 8;
+    private static final int DEDUP_CAPACITY = 1 << 14;
+    private static final long DEDUP_WINDOW_MS = 10 * 60 * 1000L;
+    private static final int MESSAGE_ID_TIME_SHIFT = 16;
+    private static final int POOL_BUFFERS_PER_SIZE = 64;
+    private static final FrameBuffer CLOSED = new FrameBuffer(null, new byte[0], 0);
+
+    static final int STATE_NONE = 0;
+    static final int STATE_CONNECTING = 1;
+    static final int STATE_CONNECTED = 2;
+
     private final BluetoothAdapter bluetoothAdapter;
     private final Handler handler;
+    private final MessagePipeline pipeline;
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+    private final DedupCache seen = new DedupCache(DEDUP_CAPACITY, DEDUP_WINDOW_MS);
+    private final BufferPool pool = new BufferPool(POOL_BUFFERS_PER_SIZE);
+    private final long nodeId = new SecureRandom().nextLong();
+    private final AtomicLong messageSequence = new AtomicLong();
     private AcceptThread acceptThread;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
-    private int state;
-    private static final int STATE_NONE = 0;
-    private static final int STATE_LISTEN = 1;
-    private static final int STATE_CONNECTING = 2;
-    private static final int STATE_CONNECTED = 3;
-
-    public BluetoothService(Handler handler, boolean isServer) {
+    private volatile boolean running;
+
+    // Link events go to handler; received frames go to pipeline.
+    public BluetoothService(Handler handler, MessagePipeline pipeline, boolean isServer) {
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         this.handler = handler;
-        this.state = STATE_NONE;
+        this.pipeline = pipeline;
         if (isServer) {
             start();
         }
     }
 
-    private synchronized void setState(int state) {
-        this.state = state;
+    // State of the link to the given device address.
+    public int getState(String address) {
+        Link link = links.get(address);
+        return link != null ? link.state : STATE_NONE;
     }
 
-    public synchronized int getState() {
-        return state;
+    public int getConnectedCount() {
+        int count = 0;
+        for (Link link : links.values()) {
+            if (link.state == STATE_CONNECTED) count++;
+        }
+        return count;
     }
 
     public synchronized void start() {
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
-        }
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
-        }
+        running = true;
         if (acceptThread == null) {
             acceptThread = new AcceptThread();
             acceptThread.start();
         }
-        setState(STATE_LISTEN);
     }
 
     public synchronized void connect(BluetoothDevice device) {
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
-            }
+        if (links.containsKey(device.getAddress())) {
+            return;
+        }
+        if (links.size() >= MAX_LINKS) {
+            toast("Link limit of " + MAX_LINKS + " reached");
+            return;
         }
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        Link link = new Link(device);
+        links.put(device.getAddress(), link);
+        new ConnectThread(link).start();
+    }
+
+    private synchronized void connected(Link link, BluetoothSocket socket) {
+        if (links.get(link.address) != link || !link.open(socket)) {
+            closeQuietly(socket);
+            return;
         }
-        connectThread = new ConnectThread(device);
-        connectThread.start();
-        setState(STATE_CONNECTING);
+        new Thread(link::readLoop, "Reader-" + link.address).start();
+        new Thread(link::writeLoop, "Writer-" + link.address).start();
+        toast("Connected to " + link.device.getName());
+        linksChanged();
     }
 
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+    public synchronized void stop() {
+        running = false;
         if (acceptThread != null) {
             acceptThread.cancel();
             acceptThread = null;
         }
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        for (Link link : links.values()) {
+            link.cancel();
         }
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        links.clear();
+        linksChanged();
+    }
+
+    // Sends a message from this phone to every link.
+    public void write(byte[] out) {
+        long msgId = nextMessageId();
+        FrameBuffer frame = pool.acquire(Frame.HEADER_SIZE + out.length);
+        Frame.writeHeader(frame.array(), Frame.TYPE_DATA, TTL, nodeId, msgId, out.length);
+        System.arraycopy(out, 0, frame.array(), Frame.HEADER_SIZE, out.length);
+        seen.markSeen(nodeId, msgId);
+        forward(frame, null);
+        frame.release();
+    }
+
+    private long nextMessageId() {
+        long floor = System.currentTimeMillis() << MESSAGE_ID_TIME_SHIFT;
+        while (true) {
+            long previous = messageSequence.get();
+            long next = Math.max(previous + 1, floor);
+            if (messageSequence.compareAndSet(previous, next)) {
+                return next;
+            }
         }
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
-        Message msg = handler.obtainMessage(MainActivity.MESSAGE_TOAST);
-        msg.obj = "Connected to " + device.getName();
-        handler.sendMessage(msg);
-        setState(STATE_CONNECTED);
     }
 
-    public synchronized void stop() {
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+    // Takes over the decoder's reference: each writer gets its own and this
+    // one is handed to the pipeline.
+    private void onFrame(Link from, FrameBuffer frame) {
+        if (frame.getType() != Frame.TYPE_DATA || !seen.markSeen(frame.getIdHigh(), frame.getIdLow())) {
+            frame.release();
+            return;
         }
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        int hops = frame.getHops() + 1;
+        if (hops < frame.getTtl()) {
+            frame.setHops(hops);
+            forward(frame, from);
         }
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+        pipeline.received(frame);
+    }
+
+    private void forward(FrameBuffer frame, Link except) {
+        for (Link link : links.values()) {
+            if (link != except && link.state == STATE_CONNECTED) {
+                link.enqueue(frame);
+            }
         }
-        setState(STATE_NONE);
     }
 
-    public void write(byte[] out) {
-        ConnectedThread r;
-        synchronized (this) {
-            if (state != STATE_CONNECTED) return;
-            r = connectedThread;
+    private void connectionFailed(Link link) {
+        if (links.remove(link.address, link)) {
+            toast("Connection to " + link.device.getName() + " failed");
+            linksChanged();
         }
-        r.write(out);
     }
 
-    private void connectionFailed() {
-        Message msg = handler.obtainMessage(MainActivity.MESSAGE_TOAST);
-        msg.obj = "Connection failed";
-        handler.sendMessage(msg);
-        BluetoothService.this.start();
+    private void connectionLost(Link link) {
+        link.cancel();
+        if (links.remove(link.address, link)) {
+            toast("Connection to " + link.device.getName() + " lost");
+            linksChanged();
+        }
+    }
+
+    private void linksChanged() {
+        handler.obtainMessage(MainActivity.MESSAGE_LINKS, getConnectedCount(), -1).sendToTarget();
     }
 
-    private void connectionLost() {
+    private void toast(String text) {
         Message msg = handler.obtainMessage(MainActivity.MESSAGE_TOAST);
-        msg.obj = "Connection lost";
+        msg.obj = text;
         handler.sendMessage(msg);
-        BluetoothService.this.start();
     }
 
-    private class AcceptThread extends Thread {
-        private final BluetoothServerSocket serverSocket;
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
 
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
+    private class Link {
+        final BluetoothDevice device;
+        final String address;
+        final ArrayBlockingQueue<FrameBuffer> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final FrameDecoder decoder = new FrameDecoder(pool);
+        volatile int state = STATE_CONNECTING;
+        private BluetoothSocket socket;
+        private InputStream input;
+        private OutputStream output;
+
+        Link(BluetoothDevice device) {
+            this.device = device;
+            this.address = device.getAddress();
+        }
+
+        synchronized boolean open(BluetoothSocket socket) {
+            if (state != STATE_CONNECTING) {
+                return false;
+            }
             try {
-                tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME, APP_UUID);
+                input = socket.getInputStream();
+                output = socket.getOutputStream();
             } catch (IOException e) {
-                handler.obtainMessage(MainActivity.MESSAGE_TOAST, -1, -1, "Server socket failed").sendToTarget();
+                handler.obtainMessage(MainActivity.MESSAGE_TOAST, -1, -1, "Stream error").sendToTarget();
+                return false;
             }
-            serverSocket = tmp;
+            this.socket = socket;
+            state = STATE_CONNECTED;
+            return true;
         }
 
-        public void run() {
-            setName("AcceptThread");
-            BluetoothSocket socket;
-            while (state != STATE_CONNECTED) {
-                try {
-                    socket = serverSocket.accept();
-                } catch (IOException e) {
-                    connectionFailed();
-                    break;
+        // Drops the oldest queued frame when the peer cannot keep up.
+        void enqueue(FrameBuffer frame) {
+            frame.retain();
+            while (!queue.offer(frame)) {
+                FrameBuffer dropped = queue.poll();
+                if (dropped != null && dropped != CLOSED) dropped.release();
+            }
+        }
+
+        void readLoop() {
+            FrameDecoder.Consumer consumer = frame -> onFrame(this, frame);
+            try {
+                while (state == STATE_CONNECTED) {
+                    decoder.readFrom(input, consumer);
                 }
-                if (socket != null) {
-                    synchronized (BluetoothService.this) {
-                        switch (state) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                connected(socket, socket.getRemoteDevice());
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    // Ignore
-                                }
-                                break;
+            } catch (IOException e) {
+                if (state == STATE_CONNECTED) connectionLost(this);
+            } finally {
+                decoder.reset();
+            }
+        }
+
+        // Writes whatever is queued in one flush, so a burst of relayed
+        // frames costs one RFCOMM write instead of one per frame.
+        void writeLoop() {
+            OutputStream batch = new BufferedOutputStream(output, 8192);
+            try {
+                while (true) {
+                    FrameBuffer frame = queue.take();
+                    int frames = 0;
+                    while (frame != null && frame != CLOSED) {
+                        frame.writeTo(batch);
+                        frame.release();
+                        if (++frames >= MAX_BATCH_FRAMES) {
+                            break;
                         }
+                        frame = queue.poll();
+                    }
+                    if (frames > 0) {
+                        batch.flush();
                     }
+                    if (frame == CLOSED || state != STATE_CONNECTED) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                if (state == STATE_CONNECTED) {
+                    handler.obtainMessage(MainActivity.MESSAGE_TOAST, -1, -1, "Write error").sendToTarget();
+                    connectionLost(this);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
 
-        public void cancel() {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                // Ignore
+        synchronized void cancel() {
+            state = STATE_NONE;
+            FrameBuffer frame;
+            while ((frame = queue.poll()) != null) {
+                if (frame != CLOSED) frame.release();
+            }
+            queue.offer(CLOSED);
+            if (socket != null) {
+                closeQuietly(socket);
             }
         }
     }
 
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket socket;
-        private final BluetoothDevice device;
+    private class AcceptThread extends Thread {
+        private final BluetoothServerSocket serverSocket;
 
-        public ConnectThread(BluetoothDevice device) {
-            this.device = device;
-            BluetoothSocket tmp = null;
+        public AcceptThread() {
+            BluetoothServerSocket tmp = null;
             try {
-                tmp = device.createRfcommSocketToServiceRecord(APP_UUID);
+                tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME, APP_UUID);
             } catch (IOException e) {
-                handler.obtainMessage(MainActivity.MESSAGE_TOAST, -1, -1, "Client socket failed").sendToTarget();
+                handler.obtainMessage(MainActivity.MESSAGE_TOAST, -1, -1, "Server socket failed").sendToTarget();
             }
-            socket = tmp;
+            serverSocket = tmp;
         }
 
         public void run() {
-            bluetoothAdapter.cancelDiscovery();
-            try {
-                socket.connect();
-            } catch (IOException e) {
+            setName("AcceptThread");
+            if (serverSocket == null) {
+                return;
+            }
+            while (running) {
+                BluetoothSocket socket;
                 try {
-                    socket.close();
-                } catch (IOException e2) {
-                    // Ignore
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (running) toast("Accepting connections failed");
+                    break;
+                }
+                if (socket != null) {
+                    accepted(socket);
                 }
-                connectionFailed();
-                return;
             }
+        }
+
+        private void accepted(BluetoothSocket socket) {
+            BluetoothDevice device = socket.getRemoteDevice();
+            Link link;
             synchronized (BluetoothService.this) {
-                connectThread = null;
+                Link existing = links.get(device.getAddress());
+                if (existing != null && existing.state == STATE_CONNECTED || existing == null && links.size() >= MAX_LINKS) {
+                    closeQuietly(socket);
+                    return;
+                }
+                // Both ends dialed at once: keep the accepted socket and drop our dial.
+                if (existing != null) {
+                    existing.cancel();
+                }
+                link = new Link(device);
+                links.put(device.getAddress(), link);
             }
-            connected(socket, device);
+            connected(link, socket);
         }
 
         public void cancel() {
             try {
-                socket.close();
+                if (serverSocket != null) serverSocket.close();
             } catch (IOException e) {
                 // Ignore
             }
         }
     }
 
-    private class ConnectedThread extends Thread {
+    private class ConnectThread extends Thread {
+        private final Link link;
         private final BluetoothSocket socket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
 
-        public ConnectedThread(BluetoothSocket socket) {
-            this.socket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+        public ConnectThread(Link link) {
+            this.link = link;
+            BluetoothSocket tmp = null;
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmp = link.device.createRfcommSocketToServiceRecord(APP_UUID);
             } catch (IOException e) {
-                handler.obtainMessage(MainActivity.MESSAGE_TOAST, -1, -1, "Stream error").sendToTarget();
+                handler.obtainMessage(MainActivity.MESSAGE_TOAST, -1, -1, "Client socket failed").sendToTarget();
             }
-            inputStream = tmpIn;
-            outputStream = tmpOut;
+            socket = tmp;
         }
 
         public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
-            while (true) {
-                try {
-                    bytes = inputStream.read(buffer);
-                    handler.obtainMessage(MainActivity.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
-                } catch (IOException e) {
-                    connectionLost();
-                    break;
-                }
-            }
-        }
-
-        public void write(byte[] buffer) {
-            try {
-                outputStream.write(buffer);
-                handler.obtainMessage(MainActivity.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-            } catch (IOException e) {
-                handler.obtainMessage(MainActivity.MESSAGE_TOAST, -1, -1, "Write error").sendToTarget();
+            setName("ConnectThread-" + link.address);
+            if (socket == null) {
+                connectionFailed(link);
+                return;
             }
-        }
-
-        public void cancel() {
+            bluetoothAdapter.cancelDiscovery();
             try {
-                socket.close();
+                socket.connect();
             } catch (IOException e) {
-                // Ignore
+                closeQuietly(socket);
+                connectionFailed(link);
+                return;
             }
+            connected(link, socket);
         }
     }
 }
@@ -0,0 +1,52 @@
+package com.sanja.bluetoothchat;
+
+import java.util.ArrayDeque;
+
+// Recycles frame buffers in power-of-two size classes so the read path does
+// not allocate per frame once it has warmed up. Each class keeps at most
+// perClass free buffers; anything beyond that, and frames larger than the
+// biggest class, are left to the garbage collector.
+final class BufferPool {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 16;
+
+    private final ArrayDeque<FrameBuffer>[] free;
+    private final int perClass;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(int perClass) {
+        this.perClass = perClass;
+        this.free = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<>(perClass);
+        }
+    }
+
+    // A buffer of at least length bytes, holding one reference for the caller.
+    FrameBuffer acquire(int length) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, length) - 1));
+        if (shift > MAX_SHIFT) {
+            return new FrameBuffer(null, new byte[length], length);
+        }
+        ArrayDeque<FrameBuffer> bucket = free[shift - MIN_SHIFT];
+        FrameBuffer buffer;
+        synchronized (bucket) {
+            buffer = bucket.poll();
+        }
+        if (buffer == null) {
+            return new FrameBuffer(this, new byte[1 << shift], length);
+        }
+        buffer.reset(length);
+        return buffer;
+    }
+
+    void recycle(FrameBuffer buffer) {
+        int shift = 31 - Integer.numberOfLeadingZeros(buffer.array().length);
+        ArrayDeque<FrameBuffer> bucket = free[shift - MIN_SHIFT];
+        synchronized (bucket) {
+            if (bucket.size() < perClass) {
+                bucket.push(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.sanja.bluetoothchat;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// Shows a window of at most MAX_WINDOW messages out of the MessageStore and
+// recycles row views, so memory stays flat however long the history is.
+// The window follows new messages only while the list is scrolled to the
+// end; otherwise it remembers that newer ones exist and MainActivity pages
+// them in from the store when the user scrolls back down.
+final class ChatAdapter extends BaseAdapter {
+    static final int PAGE_SIZE = 50;
+    private static final int MAX_WINDOW = 4 * PAGE_SIZE;
+
+    private final LayoutInflater inflater;
+    private final DateFormat timeFormat = DateFormat.getTimeInstance(DateFormat.SHORT);
+    private final Date date = new Date();
+    private final List<ChatMessage> window = new ArrayList<>();
+    private boolean hasOlder;
+    private boolean hasNewer;
+
+    private static final class RowViews {
+        final TextView text;
+        final TextView meta;
+
+        RowViews(View row) {
+            text = row.findViewById(R.id.message_text);
+            meta = row.findViewById(R.id.message_meta);
+        }
+    }
+
+    ChatAdapter(LayoutInflater inflater) {
+        this.inflater = inflater;
+    }
+
+    boolean hasOlder() {
+        return hasOlder;
+    }
+
+    boolean hasNewer() {
+        return hasNewer;
+    }
+
+    ChatMessage first() {
+        return window.get(0);
+    }
+
+    ChatMessage last() {
+        return window.get(window.size() - 1);
+    }
+
+    void showLatest(List<ChatMessage> page) {
+        window.clear();
+        window.addAll(page);
+        hasOlder = page.size() >= PAGE_SIZE;
+        hasNewer = false;
+        notifyDataSetChanged();
+    }
+
+    // Newer messages were saved while the list was not following them.
+    void markNewer() {
+        hasNewer = true;
+    }
+
+    // Live messages from the pipeline, while the list is at the end.
+    void appendLatest(List<ChatMessage> messages) {
+        if (hasNewer) {
+            return;
+        }
+        long newest = window.isEmpty() ? 0 : last().id;
+        for (ChatMessage message : messages) {
+            // A page loaded from the store may already hold them.
+            if (message.id > newest) {
+                window.add(message);
+            }
+        }
+        trimStart();
+    }
+
+    // Returns how many rows were added at the start of the window.
+    int prependOlder(List<ChatMessage> page) {
+        window.addAll(0, page);
+        hasOlder = page.size() >= PAGE_SIZE;
+        if (window.size() > MAX_WINDOW) {
+            window.subList(MAX_WINDOW, window.size()).clear();
+            hasNewer = true;
+        }
+        notifyDataSetChanged();
+        return page.size();
+    }
+
+    // Returns how many rows were trimmed from the start of the window.
+    int appendNewer(List<ChatMessage> page) {
+        window.addAll(page);
+        hasNewer = page.size() >= PAGE_SIZE;
+        return trimStart();
+    }
+
+    private int trimStart() {
+        int trimmed = Math.max(0, window.size() - MAX_WINDOW);
+        if (trimmed > 0) {
+            window.subList(0, trimmed).clear();
+            hasOlder = true;
+        }
+        notifyDataSetChanged();
+        return trimmed;
+    }
+
+    @Override
+    public int getCount() {
+        return window.size();
+    }
+
+    @Override
+    public ChatMessage getItem(int position) {
+        return window.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return window.get(position).id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View row = convertView;
+        RowViews views;
+        if (row == null) {
+            row = inflater.inflate(R.layout.message_item, parent, false);
+            views = new RowViews(row);
+            row.setTag(views);
+        } else {
+            views = (RowViews) row.getTag();
+        }
+        ChatMessage message = window.get(position);
+        date.setTime(message.timestamp);
+        views.meta.setText((message.outgoing ? "Sent " : "Received ") + timeFormat.format(date));
+        views.text.setText(message.text);
+        return row;
+    }
+}
@@ -0,0 +1,17 @@
+package com.sanja.bluetoothchat;
+
+// One chat message as stored and shown. The id is the store's row id, 0
+// until the message has been saved.
+final class ChatMessage {
+    final long id;
+    final long timestamp;
+    final boolean outgoing;
+    final String text;
+
+    ChatMessage(long id, long timestamp, boolean outgoing, String text) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.outgoing = outgoing;
+        this.text = text;
+    }
+}
@@ -0,0 +1,109 @@
+package com.sanja.bluetoothchat;
+
+import java.util.Arrays;
+
+// Fixed-size duplicate filter for 128-bit message ids, ported from the
+// desktop relay. Ids are spread over independently locked stripes; each
+// stripe keeps two open-addressing generations of primitive longs and
+// rotates them when the current one fills up or half the window passes, so
+// an id is remembered for at least half the window and memory never grows.
+// The all-zero id is reserved as the empty slot marker.
+final class DedupCache {
+    private static final int STRIPES = 8;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long halfWindowNanos;
+
+    DedupCache(int capacity, long windowMillis) {
+        int perGeneration = Math.max(16, capacity / STRIPES / 2);
+        int slots = Integer.highestOneBit(perGeneration * 2 - 1) << 1;
+        this.halfWindowNanos = windowMillis * 1000000L / 2;
+        long now = System.nanoTime();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(slots, perGeneration, now);
+        }
+    }
+
+    // True if the id had not been seen yet.
+    boolean markSeen(long idHigh, long idLow) {
+        long hash = mix(idHigh, idLow);
+        return stripes[(int) (hash >>> 61)].markSeen(idHigh, idLow, (int) hash, System.nanoTime(), halfWindowNanos);
+    }
+
+    private static long mix(long idHigh, long idLow) {
+        long h = idHigh * 0x9E3779B97F4A7C15L + idLow;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static final class Stripe {
+        private final int mask;
+        private final int limit;
+        private long[] current;
+        private long[] previous;
+        private int currentSize;
+        private long rotatedAt;
+
+        Stripe(int slots, int limit, long now) {
+            this.mask = slots - 1;
+            this.limit = limit;
+            this.current = new long[slots * 2];
+            this.previous = new long[slots * 2];
+            this.rotatedAt = now;
+        }
+
+        synchronized boolean markSeen(long idHigh, long idLow, int hash, long now, long halfWindowNanos) {
+            long elapsed = now - rotatedAt;
+            if (elapsed >= halfWindowNanos) {
+                rotate(now);
+                if (elapsed >= halfWindowNanos * 2) {
+                    rotate(now);
+                }
+            }
+            if (find(previous, idHigh, idLow, hash) >= 0) {
+                return false;
+            }
+            int slot = find(current, idHigh, idLow, hash);
+            if (slot >= 0) {
+                return false;
+            }
+            if (currentSize >= limit) {
+                rotate(now);
+                slot = find(current, idHigh, idLow, hash);
+            }
+            int index = -slot - 1;
+            current[index * 2] = idHigh;
+            current[index * 2 + 1] = idLow;
+            currentSize++;
+            return true;
+        }
+
+        // Returns the slot holding the id, or -(free slot) - 1 when absent.
+        private int find(long[] table, long idHigh, long idLow, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                long high = table[slot * 2];
+                long low = table[slot * 2 + 1];
+                if (high == idHigh && low == idLow) {
+                    return (high | low) == 0 ? -slot - 1 : slot;
+                }
+                if ((high | low) == 0) {
+                    return -slot - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void rotate(long now) {
+            long[] cleared = previous;
+            Arrays.fill(cleared, 0L);
+            previous = current;
+            current = cleared;
+            currentSize = 0;
+            rotatedAt = now;
+        }
+    }
+}
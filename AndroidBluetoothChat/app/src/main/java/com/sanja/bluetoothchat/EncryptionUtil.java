@@ -1,58 +1,118 @@
 package com.sanja.bluetoothchat;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.PublicKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Payload key derived from the mesh secret the same way as on the desktop
+// (HKDF-SHA256 with the app salt), so phones and desktop nodes sharing a
+// secret share the key. Without a secret there is no key and every call
+// fails: nothing is ever sent in the clear.
 public class EncryptionUtil {
     private static final String ALGORITHM = "AES";
-    private static SecretKeySpec aesKey;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String HMAC = "HmacSHA256";
+    private static final String KEY_SALT = "ImprovedBluetoothChatApp";
+    private static final String KEY_INFO = "bluemesh payload key";
+    private static final int KEY_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Nonce = 4-byte random salt + 64-bit counter starting at a random value.
+    private static final int NONCE_SALT = RANDOM.nextInt();
+    private static final AtomicLong nonceCounter = new AtomicLong(RANDOM.nextLong());
+    private static final ThreadLocal<CipherState> ciphers = new ThreadLocal<CipherState>() {
+        @Override
+        protected CipherState initialValue() {
+            return new CipherState();
+        }
+    };
+    private static volatile SecretKeySpec aesKey;
 
-    public static void performKeyExchange(PublicKey clientPublicKey, PublicKey serverPublicKey) throws Exception {
-        KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("DH");
-        keyPairGen.initialize(2048);
-        KeyPair clientKeyPair = keyPairGen.generateKeyPair();
-        KeyPair serverKeyPair = keyPairGen.generateKeyPair();
+    private static final class CipherState {
+        final Cipher cipher;
+        final byte[] nonce = new byte[NONCE_SIZE];
+        final ByteBuffer nonceBuffer = ByteBuffer.wrap(nonce);
 
-        KeyAgreement clientKeyAgree = KeyAgreement.getInstance("DH");
-        clientKeyAgree.init(clientKeyPair.getPrivate());
-        clientKeyAgree.doPhase(serverPublicKey, true);
-        byte[] clientSharedSecret = clientKeyAgree.generateSecret();
+        CipherState() {
+            try {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+            }
+        }
+    }
 
-        KeyAgreement serverKeyAgree = KeyAgreement.getInstance("DH");
-        serverKeyAgree.init(serverKeyPair.getPrivate());
-        serverKeyAgree.doPhase(clientPublicKey, true);
-        byte[] serverSharedSecret = serverKeyAgree.generateSecret();
+    // HKDF extract and a single expand block, which covers the 16-byte key.
+    public static void setMeshSecret(String secret) throws GeneralSecurityException {
+        if (secret == null || secret.isEmpty()) {
+            throw new GeneralSecurityException("Mesh secret must not be empty");
+        }
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(KEY_SALT.getBytes(StandardCharsets.UTF_8), HMAC));
+        byte[] pseudoRandomKey = mac.doFinal(secret.getBytes(StandardCharsets.UTF_8));
+        mac.init(new SecretKeySpec(pseudoRandomKey, HMAC));
+        mac.update(KEY_INFO.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 1);
+        aesKey = new SecretKeySpec(mac.doFinal(), 0, KEY_SIZE, ALGORITHM);
+    }
+
+    public static boolean hasKey() {
+        return aesKey != null;
+    }
 
-        aesKey = new SecretKeySpec(clientSharedSecret, 0, 16, ALGORITHM);
+    public static String encrypt(String message) throws GeneralSecurityException {
+        byte[] plaintext = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(NONCE_SIZE + plaintext.length + TAG_BITS / 8);
+        encrypt(ByteBuffer.wrap(plaintext), out);
+        return Base64.getEncoder().encodeToString(out.array());
     }
 
-    public static String encrypt(String message) {
+    public static String decrypt(String encryptedMessage) throws GeneralSecurityException {
+        ByteBuffer sealed;
         try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-            byte[] encrypted = cipher.doFinal(message.getBytes());
-            return Base64.getEncoder().encodeToString(encrypted);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return message;
+            sealed = ByteBuffer.wrap(Base64.getDecoder().decode(encryptedMessage));
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed ciphertext", e);
         }
+        ByteBuffer out = ByteBuffer.allocate(Math.max(0, sealed.remaining() - NONCE_SIZE - TAG_BITS / 8));
+        int length = decrypt(sealed, out);
+        return new String(out.array(), 0, length, StandardCharsets.UTF_8);
     }
 
-    public static String decrypt(String encryptedMessage) {
-        try {
-            Cipher crypt = Cipher.getInstance(ALGORITHM);
-            crypt.init(Cipher.DECRYPT_MODE, aesKey);
-            byte[] decoded = Base64.getDecoder().decode(encryptedMessage);
-            byte[] decrypted = crypt.doFinal(decoded);
-            return new String(decrypted);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return encryptedMessage;
+    public static int encrypt(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        SecretKeySpec key = requireKey();
+        CipherState state = ciphers.get();
+        state.nonceBuffer.clear();
+        state.nonceBuffer.putInt(NONCE_SALT).putLong(nonceCounter.getAndIncrement());
+        state.cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, state.nonce));
+        out.put(state.nonce);
+        return NONCE_SIZE + state.cipher.doFinal(plaintext, out);
+    }
+
+    public static int decrypt(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        SecretKeySpec key = requireKey();
+        if (sealed.remaining() < NONCE_SIZE + TAG_BITS / 8) {
+            throw new GeneralSecurityException("Ciphertext too short");
+        }
+        CipherState state = ciphers.get();
+        sealed.get(state.nonce);
+        state.cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, state.nonce));
+        return state.cipher.doFinal(sealed, out);
+    }
+
+    private static SecretKeySpec requireKey() throws GeneralSecurityException {
+        SecretKeySpec key = aesKey;
+        if (key == null) {
+            throw new GeneralSecurityException("No mesh secret set");
         }
+        return key;
     }
 }
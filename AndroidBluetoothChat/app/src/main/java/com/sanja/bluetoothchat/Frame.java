@@ -0,0 +1,66 @@
+package com.sanja.bluetoothchat;
+
+import java.net.ProtocolException;
+
+// Mesh frame, same layout as the desktop app (big-endian):
+//   0  version   1 byte
+//   1  type      1 byte
+//   2  flags     1 byte
+//   3  hops      1 byte   (links traversed so far)
+//   4  ttl       1 byte   (links the frame may traverse in total)
+//   5  idHigh    8 bytes  (origin node id)
+//  13  idLow     8 bytes  (message id at the origin)
+//  21  length    4 bytes  (payload length)
+//  25  payload   length bytes
+// Frames are handled in their encoded form so relays forward them as-is.
+final class Frame {
+    static final byte VERSION = 2;
+    static final int HEADER_SIZE = 25;
+    static final int MAX_PAYLOAD = 1 << 20;
+
+    static final byte TYPE_DATA = 1;
+
+    static final int OFFSET_VERSION = 0;
+    static final int OFFSET_TYPE = 1;
+    static final int OFFSET_FLAGS = 2;
+    static final int OFFSET_HOPS = 3;
+    static final int OFFSET_TTL = 4;
+    static final int OFFSET_ID_HIGH = 5;
+    static final int OFFSET_ID_LOW = 13;
+    static final int OFFSET_LENGTH = 21;
+
+    private Frame() {
+    }
+
+    static void writeHeader(byte[] dst, byte type, int ttl, long idHigh, long idLow, int payloadLength) {
+        dst[OFFSET_VERSION] = VERSION;
+        dst[OFFSET_TYPE] = type;
+        dst[OFFSET_FLAGS] = 0;
+        dst[OFFSET_HOPS] = 0;
+        dst[OFFSET_TTL] = (byte) ttl;
+        putLong(dst, OFFSET_ID_HIGH, idHigh);
+        putLong(dst, OFFSET_ID_LOW, idLow);
+        for (int i = 0; i < 4; i++) {
+            dst[OFFSET_LENGTH + i] = (byte) (payloadLength >>> 24 - 8 * i);
+        }
+    }
+
+    // Returns the payload length of the header at offset.
+    static int checkHeader(byte[] buffer, int offset) throws ProtocolException {
+        if (buffer[offset + OFFSET_VERSION] != VERSION) {
+            throw new ProtocolException("Unsupported frame version " + buffer[offset + OFFSET_VERSION]);
+        }
+        int i = offset + OFFSET_LENGTH;
+        int length = (buffer[i] & 0xFF) << 24 | (buffer[i + 1] & 0xFF) << 16 | (buffer[i + 2] & 0xFF) << 8 | (buffer[i + 3] & 0xFF);
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            dst[offset + i] = (byte) (value >>> 56 - 8 * i);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.sanja.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One encoded frame in a pooled buffer. Consumers only get read access; the
+// relay bumps the hop count before it hands the frame to anyone. Reference
+// counted because one received frame goes to several writers and the UI at
+// once: whoever keeps it calls retain(), and every holder calls release()
+// when done, which returns the buffer to its pool after the last one.
+final class FrameBuffer {
+    private final BufferPool pool;
+    private final byte[] array;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private int length;
+
+    FrameBuffer(BufferPool pool, byte[] array, int length) {
+        this.pool = pool;
+        this.array = array;
+        this.length = length;
+    }
+
+    void reset(int length) {
+        this.length = length;
+        references.set(1);
+    }
+
+    // Backing array, for the decoder that fills it and the pool.
+    byte[] array() {
+        return array;
+    }
+
+    int length() {
+        return length;
+    }
+
+    byte getType() {
+        return array[Frame.OFFSET_TYPE];
+    }
+
+    int getHops() {
+        return array[Frame.OFFSET_HOPS] & 0xFF;
+    }
+
+    void setHops(int hops) {
+        array[Frame.OFFSET_HOPS] = (byte) Math.min(hops, 0xFF);
+    }
+
+    int getTtl() {
+        return array[Frame.OFFSET_TTL] & 0xFF;
+    }
+
+    long getIdHigh() {
+        return getLong(Frame.OFFSET_ID_HIGH);
+    }
+
+    long getIdLow() {
+        return getLong(Frame.OFFSET_ID_LOW);
+    }
+
+    int getPayloadLength() {
+        return length - Frame.HEADER_SIZE;
+    }
+
+    ByteBuffer payload() {
+        return ByteBuffer.wrap(array, Frame.HEADER_SIZE, getPayloadLength()).asReadOnlyBuffer();
+    }
+
+    String getPayloadString() {
+        return new String(array, Frame.HEADER_SIZE, getPayloadLength(), StandardCharsets.UTF_8);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(array, 0, length);
+    }
+
+    FrameBuffer retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0 && pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    private long getLong(int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (array[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
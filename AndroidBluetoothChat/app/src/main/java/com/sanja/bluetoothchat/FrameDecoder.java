@@ -0,0 +1,78 @@
+package com.sanja.bluetoothchat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Splits a byte stream into length-prefixed frames, however the reads cut
+// it: a read may end mid-header, hold the tail of one frame and the start of
+// the next, or several whole frames. Bytes are copied once, from the read
+// buffer into a pooled FrameBuffer sized for the frame, which is handed to
+// the consumer when complete. The consumer owns that reference.
+final class FrameDecoder {
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    interface Consumer {
+        void onFrame(FrameBuffer frame) throws IOException;
+    }
+
+    private final BufferPool pool;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private final byte[] header = new byte[Frame.HEADER_SIZE];
+    private int headerFilled;
+    private FrameBuffer current;
+    private int currentFilled;
+
+    FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    // Blocks for one read and passes on every frame it completes.
+    void readFrom(InputStream in, Consumer consumer) throws IOException {
+        int read = in.read(readBuffer);
+        if (read < 0) {
+            throw new EOFException("Stream closed");
+        }
+        feed(readBuffer, 0, read, consumer);
+    }
+
+    void feed(byte[] data, int offset, int length, Consumer consumer) throws IOException {
+        while (true) {
+            if (current == null) {
+                int n = Math.min(Frame.HEADER_SIZE - headerFilled, length);
+                System.arraycopy(data, offset, header, headerFilled, n);
+                headerFilled += n;
+                offset += n;
+                length -= n;
+                if (headerFilled < Frame.HEADER_SIZE) {
+                    return;
+                }
+                int payloadLength = Frame.checkHeader(header, 0);
+                current = pool.acquire(Frame.HEADER_SIZE + payloadLength);
+                System.arraycopy(header, 0, current.array(), 0, Frame.HEADER_SIZE);
+                currentFilled = Frame.HEADER_SIZE;
+                headerFilled = 0;
+            }
+            int n = Math.min(current.length() - currentFilled, length);
+            System.arraycopy(data, offset, current.array(), currentFilled, n);
+            currentFilled += n;
+            offset += n;
+            length -= n;
+            if (currentFilled < current.length()) {
+                return;
+            }
+            FrameBuffer frame = current;
+            current = null;
+            consumer.onFrame(frame);
+        }
+    }
+
+    // Drops a partly received frame, e.g. when the link closes.
+    void reset() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        headerFilled = 0;
+    }
+}
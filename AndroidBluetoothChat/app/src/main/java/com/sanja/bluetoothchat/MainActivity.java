@@ -11,7 +11,9 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -23,44 +25,42 @@ import androidx.appcompat.app.AppCompatActivity;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 public class MainActivity extends AppCompatActivity {
     private static final UUID APP_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-800c29f3c000");
     private static final String APP_NAME = "BluetoothChatApp";
     private static final int REQUEST_ENABLE_BT = 1;
-    private static final int MESSAGE_READ = 2;
-    private static final int MESSAGE_WRITE = 3;
-    private static final int MESSAGE_TOAST = 4;
+    // Shared with BluetoothService, which posts these to the handler.
+    static final int MESSAGE_TOAST = 4;
+    static final int MESSAGE_LINKS = 5;
 
     private BluetoothAdapter bluetoothAdapter;
     private ArrayAdapter<String> devicesAdapter;
     private ArrayList<BluetoothDevice> devicesList;
     private BluetoothService bluetoothService;
+    private MessagePipeline pipeline;
     private TextView statusText;
     private EditText messageInput;
-    private TextView chatOutput;
+    private EditText meshSecretInput;
+    private ListView messageList;
+    private ChatAdapter chatAdapter;
+    private boolean loadingPage;
     private Button sendButton;
 
     private final Handler handler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    String decryptedMessage = EncryptionUtil.decrypt(readMessage);
-                    chatOutput.append("Received: " + decryptedMessage + "\n");
-                    break;
-                case MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    String writeMessage = new String(writeBuf);
-                    chatOutput.append("Sent: " + writeMessage + "\n");
-                    break;
                 case MESSAGE_TOAST:
                     Toast.makeText(MainActivity.this, msg.obj.toString(), Toast.LENGTH_SHORT).show();
                     break;
+                case MESSAGE_LINKS:
+                    statusText.setText(msg.arg1 == 0 ? "Not connected" : "Connected to " + msg.arg1 + " peer(s)");
+                    break;
             }
         }
     };
@@ -79,6 +79,28 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
+    // Pages history in from the store when the list is scrolled to either
+    // end of the window.
+    private final AbsListView.OnScrollListener pager = new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int first, int visible, int total) {
+            if (loadingPage || total == 0) {
+                return;
+            }
+            if (first == 0 && chatAdapter.hasOlder()) {
+                loadingPage = true;
+                pipeline.loadBefore(chatAdapter.first(), MainActivity.this::showOlder);
+            } else if (first + visible >= total && chatAdapter.hasNewer()) {
+                loadingPage = true;
+                pipeline.loadAfter(chatAdapter.last(), MainActivity.this::showNewer);
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -93,7 +115,8 @@ public class MainActivity extends AppCompatActivity {
 
         statusText = findViewById(R.id.status_text);
         messageInput = findViewById(R.id.message_input);
-        chatOutput = findViewById(R.id.chat_output);
+        meshSecretInput = findViewById(R.id.mesh_secret_input);
+        messageList = findViewById(R.id.message_list);
         sendButton = findViewById(R.id.send_button);
         ListView devicesListView = findViewById(R.id.devices_list);
         Button startServerButton = findViewById(R.id.start_server_button);
@@ -108,9 +131,21 @@ public class MainActivity extends AppCompatActivity {
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
         }
 
+        // One service for every link: it keeps accepting after the first
+        // connection, so this phone can relay for the others.
+        chatAdapter = new ChatAdapter(LayoutInflater.from(this));
+        messageList.setAdapter(chatAdapter);
+        messageList.setOnScrollListener(pager);
+        pipeline = new MessagePipeline(new MessageStore(this), this::showMessages);
+        loadingPage = true;
+        pipeline.loadLatest(this::showLatest);
+        bluetoothService = new BluetoothService(handler, pipeline, false);
+
         startServerButton.setOnClickListener(v -> {
+            if (!applyMeshSecret()) {
+                return;
+            }
             statusText.setText("Starting server...");
-            bluetoothService = new BluetoothService(handler, true);
             bluetoothService.start();
         });
 
@@ -123,17 +158,19 @@ public class MainActivity extends AppCompatActivity {
 
         devicesListView.setOnItemClickListener((parent, view, position, id) -> {
             bluetoothAdapter.cancelDiscovery();
+            if (!applyMeshSecret()) {
+                return;
+            }
             BluetoothDevice device = devicesList.get(position);
             statusText.setText("Connecting to " + device.getName() + "...");
-            bluetoothService = new BluetoothService(handler, false);
+            bluetoothService.start();
             bluetoothService.connect(device);
         });
 
         sendButton.setOnClickListener(v -> {
             String message = messageInput.getText().toString();
-            if (!message.isEmpty() && bluetoothService != null) {
-                String encryptedMessage = EncryptionUtil.encrypt(message);
-                bluetoothService.write(encryptedMessage.getBytes());
+            if (!message.isEmpty() && bluetoothService != null && (EncryptionUtil.hasKey() || applyMeshSecret())) {
+                pipeline.send(bluetoothService, message);
                 messageInput.setText("");
             }
         });
@@ -142,6 +179,65 @@ public class MainActivity extends AppCompatActivity {
         registerReceiver(receiver, filter);
     }
 
+    // Payloads are only ever sent sealed, so no link starts without a secret.
+    private boolean applyMeshSecret() {
+        String secret = meshSecretInput.getText().toString();
+        if (secret.isEmpty()) {
+            Toast.makeText(this, "Enter the mesh secret first", Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        try {
+            EncryptionUtil.setMeshSecret(secret);
+            return true;
+        } catch (GeneralSecurityException e) {
+            Toast.makeText(this, "Mesh key setup failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            return false;
+        }
+    }
+
+    // Called once per frame with everything the pipeline saved since the last.
+    private void showMessages(List<ChatMessage> messages, int skipped) {
+        boolean following = messageList.getLastVisiblePosition() >= chatAdapter.getCount() - 1;
+        if (skipped > 0 && following && !loadingPage) {
+            // Some saved messages never reached the window: reload the end.
+            loadingPage = true;
+            pipeline.loadLatest(this::showLatest);
+            return;
+        }
+        if (!following) {
+            if (!messages.isEmpty() || skipped > 0) {
+                chatAdapter.markNewer();
+            }
+            return;
+        }
+        chatAdapter.appendLatest(messages);
+        messageList.setSelection(chatAdapter.getCount() - 1);
+    }
+
+    private void showLatest(List<ChatMessage> page) {
+        chatAdapter.showLatest(page);
+        messageList.setSelection(chatAdapter.getCount() - 1);
+        loadingPage = false;
+    }
+
+    // Keeps the rows on screen in place while a page is added above them.
+    private void showOlder(List<ChatMessage> page) {
+        int first = messageList.getFirstVisiblePosition();
+        View top = messageList.getChildAt(0);
+        int added = chatAdapter.prependOlder(page);
+        messageList.setSelectionFromTop(first + added, top != null ? top.getTop() : 0);
+        loadingPage = false;
+    }
+
+    private void showNewer(List<ChatMessage> page) {
+        int first = messageList.getFirstVisiblePosition();
+        View top = messageList.getChildAt(0);
+        int trimmed = chatAdapter.appendNewer(page);
+        messageList.setSelectionFromTop(Math.max(0, first - trimmed), top != null ? top.getTop() : 0);
+        loadingPage = false;
+    }
+
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -157,6 +253,9 @@ public class MainActivity extends AppCompatActivity {
         if (bluetoothService != null) {
             bluetoothService.stop();
         }
+        if (pipeline != null) {
+            pipeline.quit();
+        }
         unregisterReceiver(receiver);
     }
 }
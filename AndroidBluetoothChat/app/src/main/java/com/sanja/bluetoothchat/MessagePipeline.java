@@ -0,0 +1,201 @@
+package com.sanja.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.view.Choreographer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps message crypto and storage off the main thread. Outgoing messages are
+// encrypted and received frames decrypted on one background HandlerThread,
+// which also saves them to the MessageStore, one transaction per burst, and
+// serves history pages. Saved messages reach the UI in batches from a
+// Choreographer callback, at most once per frame however fast they arrive.
+//
+// Backpressure: at most MAX_IN_FLIGHT received frames wait for decryption and
+// at most MAX_PENDING_MESSAGES messages wait for the UI. Past either limit the
+// oldest work is dropped and counted, so a UI that falls behind costs display
+// updates, never relay throughput; BluetoothService has already forwarded
+// every frame by the time it gets here.
+final class MessagePipeline {
+    private static final int MAX_IN_FLIGHT = 256;
+    private static final int MAX_PENDING_MESSAGES = 512;
+    private static final int MAX_MESSAGES_PER_FRAME = 64;
+
+    interface Listener {
+        // Called on the main thread with the messages saved since the last
+        // call; skipped counts those that were dropped instead.
+        void onMessages(List<ChatMessage> messages, int skipped);
+    }
+
+    interface PageCallback {
+        // Called on the main thread with a page of history, oldest first.
+        void onPage(List<ChatMessage> page);
+    }
+
+    private final HandlerThread thread = new HandlerThread("MessagePipeline", Process.THREAD_PRIORITY_BACKGROUND);
+    private final Handler worker;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final Choreographer choreographer;
+    private final Listener listener;
+    private final MessageStore store;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ArrayDeque<ChatMessage> pending = new ArrayDeque<>();
+    private final List<ChatMessage> unsaved = new ArrayList<>();
+    private final Choreographer.FrameCallback frameCallback = this::onFrame;
+    private final Runnable scheduleFrame = this::scheduleFrame;
+    private final Runnable save = this::save;
+    private int skipped;
+    private boolean frameScheduled;
+    private volatile boolean quit;
+
+    // Must be created on the main thread, which owns the Choreographer.
+    MessagePipeline(MessageStore store, Listener listener) {
+        this.store = store;
+        this.listener = listener;
+        this.choreographer = Choreographer.getInstance();
+        thread.start();
+        worker = new Handler(thread.getLooper());
+    }
+
+    // Takes over the caller's reference to the frame.
+    void received(FrameBuffer frame) {
+        if (inFlight.incrementAndGet() > MAX_IN_FLIGHT || !worker.post(() -> decrypt(frame))) {
+            inFlight.decrementAndGet();
+            frame.release();
+            publish(null);
+        }
+    }
+
+    // A message that cannot be sealed is dropped, never sent in the clear.
+    void send(BluetoothService service, String message) {
+        worker.post(() -> {
+            String sealed;
+            try {
+                sealed = EncryptionUtil.encrypt(message);
+            } catch (GeneralSecurityException e) {
+                publish(null);
+                return;
+            }
+            service.write(sealed.getBytes(StandardCharsets.UTF_8));
+            record(true, message);
+        });
+    }
+
+    void loadLatest(PageCallback callback) {
+        worker.post(() -> deliver(store.latest(MessageStore.MESH, ChatAdapter.PAGE_SIZE), callback));
+    }
+
+    void loadBefore(ChatMessage first, PageCallback callback) {
+        worker.post(() -> deliver(store.before(MessageStore.MESH, first, ChatAdapter.PAGE_SIZE), callback));
+    }
+
+    void loadAfter(ChatMessage last, PageCallback callback) {
+        worker.post(() -> deliver(store.after(MessageStore.MESH, last, ChatAdapter.PAGE_SIZE), callback));
+    }
+
+    void quit() {
+        quit = true;
+        worker.post(() -> {
+            save();
+            store.close();
+        });
+        thread.quitSafely();
+        main.removeCallbacks(scheduleFrame);
+        choreographer.removeFrameCallback(frameCallback);
+    }
+
+    private void decrypt(FrameBuffer frame) {
+        String sealed = frame.getPayloadString();
+        frame.release();
+        try {
+            record(false, EncryptionUtil.decrypt(sealed));
+        } catch (GeneralSecurityException e) {
+            publish(null);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    // Saves are deferred behind whatever is already queued on the worker, so
+    // a burst of messages is written in one transaction.
+    private void record(boolean outgoing, String text) {
+        if (unsaved.isEmpty()) {
+            worker.post(save);
+        }
+        unsaved.add(new ChatMessage(0, System.currentTimeMillis(), outgoing, text));
+    }
+
+    private void save() {
+        if (unsaved.isEmpty()) {
+            return;
+        }
+        List<ChatMessage> saved = store.insert(MessageStore.MESH, unsaved);
+        unsaved.clear();
+        for (ChatMessage message : saved) {
+            publish(message);
+        }
+    }
+
+    private void deliver(List<ChatMessage> page, PageCallback callback) {
+        main.post(() -> {
+            if (!quit) {
+                callback.onPage(page);
+            }
+        });
+    }
+
+    // Queues a message for the next frame; null counts a dropped one.
+    private void publish(ChatMessage message) {
+        boolean schedule;
+        synchronized (pending) {
+            if (message == null) {
+                skipped++;
+            } else {
+                if (pending.size() == MAX_PENDING_MESSAGES) {
+                    pending.poll();
+                    skipped++;
+                }
+                pending.add(message);
+            }
+            schedule = !frameScheduled;
+            frameScheduled = true;
+        }
+        if (schedule && !quit) {
+            main.post(scheduleFrame);
+        }
+    }
+
+    private void scheduleFrame() {
+        if (!quit) {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        List<ChatMessage> messages = new ArrayList<>(MAX_MESSAGES_PER_FRAME);
+        int dropped;
+        boolean more;
+        synchronized (pending) {
+            while (messages.size() < MAX_MESSAGES_PER_FRAME && !pending.isEmpty()) {
+                messages.add(pending.poll());
+            }
+            dropped = skipped;
+            skipped = 0;
+            more = !pending.isEmpty();
+            frameScheduled = more;
+        }
+        if (more) {
+            scheduleFrame();
+        }
+        if (!quit) {
+            listener.onMessages(messages, dropped);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.sanja.bluetoothchat;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Chat history on disk, one row per message, indexed by conversation and
+// timestamp. Pages are read by keyset on (timestamp, id) rather than by
+// offset, so fetching a page costs the same however long the history is.
+// Not thread-safe by itself: MessagePipeline does all access on its thread.
+final class MessageStore extends SQLiteOpenHelper {
+    // Every message is broadcast to the whole mesh, so for now there is a
+    // single conversation.
+    static final String MESH = "mesh";
+
+    private static final String DATABASE = "messages.db";
+    private static final int VERSION = 1;
+    private static final String COLUMNS = "_id, timestamp, outgoing, body";
+
+    MessageStore(Context context) {
+        super(context.getApplicationContext(), DATABASE, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE messages ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "conversation TEXT NOT NULL, "
+                + "timestamp INTEGER NOT NULL, "
+                + "outgoing INTEGER NOT NULL, "
+                + "body TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX messages_conversation_timestamp ON messages (conversation, timestamp)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only one version so far.
+    }
+
+    // Saves the messages in one transaction and returns them with their ids.
+    List<ChatMessage> insert(String conversation, List<ChatMessage> messages) {
+        List<ChatMessage> saved = new ArrayList<>(messages.size());
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO messages (conversation, timestamp, outgoing, body) VALUES (?, ?, ?, ?)")) {
+            for (ChatMessage message : messages) {
+                insert.bindString(1, conversation);
+                insert.bindLong(2, message.timestamp);
+                insert.bindLong(3, message.outgoing ? 1 : 0);
+                insert.bindString(4, message.text);
+                long id = insert.executeInsert();
+                saved.add(new ChatMessage(id, message.timestamp, message.outgoing, message.text));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return saved;
+    }
+
+    // The newest messages, oldest first.
+    List<ChatMessage> latest(String conversation, int limit) {
+        List<ChatMessage> page = query("SELECT " + COLUMNS + " FROM messages WHERE conversation = ?"
+                + " ORDER BY timestamp DESC, _id DESC LIMIT " + limit, conversation);
+        Collections.reverse(page);
+        return page;
+    }
+
+    // Up to limit messages just before the given one, oldest first.
+    List<ChatMessage> before(String conversation, ChatMessage first, int limit) {
+        String timestamp = Long.toString(first.timestamp);
+        List<ChatMessage> page = query("SELECT " + COLUMNS + " FROM messages WHERE conversation = ?"
+                + " AND (timestamp < ? OR timestamp = ? AND _id < ?)"
+                + " ORDER BY timestamp DESC, _id DESC LIMIT " + limit,
+                conversation, timestamp, timestamp, Long.toString(first.id));
+        Collections.reverse(page);
+        return page;
+    }
+
+    // Up to limit messages just after the given one, oldest first.
+    List<ChatMessage> after(String conversation, ChatMessage last, int limit) {
+        String timestamp = Long.toString(last.timestamp);
+        return query("SELECT " + COLUMNS + " FROM messages WHERE conversation = ?"
+                + " AND (timestamp > ? OR timestamp = ? AND _id > ?)"
+                + " ORDER BY timestamp ASC, _id ASC LIMIT " + limit,
+                conversation, timestamp, timestamp, Long.toString(last.id));
+    }
+
+    private List<ChatMessage> query(String sql, String... args) {
+        List<ChatMessage> page = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                page.add(new ChatMessage(cursor.getLong(0), cursor.getLong(1), cursor.getInt(2) != 0, cursor.getString(3)));
+            }
+        }
+        return page;
+    }
+}
@@ -0,0 +1,166 @@
+package com.sanja.bluetoothchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// Feeds encoded frames to the decoder cut up in every way a socket read can
+// cut them and checks that exactly the encoded bytes come back out.
+public class FrameDecoderTest {
+    private final List<byte[]> decoded = new ArrayList<>();
+    private final FrameDecoder.Consumer collect = frame -> {
+        decoded.add(Arrays.copyOf(frame.array(), frame.length()));
+        frame.release();
+    };
+    private FrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new FrameDecoder(new BufferPool(4));
+    }
+
+    @Test
+    public void decodesOneByteAtATime() throws IOException {
+        List<byte[]> frames = frames(1, 0, 7, 64, 1000);
+        byte[] stream = concat(frames);
+        for (int i = 0; i < stream.length; i++) {
+            decoder.feed(stream, i, 1, collect);
+        }
+        assertFrames(frames);
+    }
+
+    @Test
+    public void decodesRandomSplits() throws IOException {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            decoded.clear();
+            decoder.reset();
+            List<byte[]> frames = new ArrayList<>();
+            int count = 1 + random.nextInt(8);
+            for (int i = 0; i < count; i++) {
+                frames.add(frame(random.nextLong(), random.nextInt(3) == 0 ? 0 : random.nextInt(5000)));
+            }
+            byte[] stream = concat(frames);
+            for (int offset = 0; offset < stream.length; ) {
+                int length = Math.min(stream.length - offset, 1 + random.nextInt(Frame.HEADER_SIZE * 3));
+                decoder.feed(stream, offset, length, collect);
+                offset += length;
+            }
+            assertFrames(frames);
+        }
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneRead() throws IOException {
+        List<byte[]> frames = frames(3, 10, 0, 200, 0);
+        byte[] stream = concat(frames);
+        decoder.feed(stream, 0, stream.length, collect);
+        assertFrames(frames);
+    }
+
+    @Test
+    public void decodesEmptyPayloads() throws IOException {
+        List<byte[]> frames = frames(0, 0, 0);
+        byte[] stream = concat(frames);
+        decoder.feed(stream, 0, stream.length, collect);
+        assertFrames(frames);
+        for (byte[] frame : decoded) {
+            assertEquals(Frame.HEADER_SIZE, frame.length);
+        }
+    }
+
+    @Test
+    public void decodesPayloadsLargerThanThePool() throws IOException {
+        List<byte[]> frames = frames(70_000, 1 << 16, 5, Frame.MAX_PAYLOAD);
+        InputStream in = new ByteArrayInputStream(concat(frames));
+        while (decoded.size() < frames.size()) {
+            decoder.readFrom(in, collect);
+        }
+        assertFrames(frames);
+    }
+
+    @Test(expected = EOFException.class)
+    public void reportsEndOfStream() throws IOException {
+        decoder.readFrom(new ByteArrayInputStream(new byte[0]), collect);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        byte[] frame = frame(1, 4);
+        frame[Frame.OFFSET_VERSION] = Frame.VERSION + 1;
+        decoder.feed(frame, 0, frame.length, collect);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsLengthOverLimit() throws IOException {
+        byte[] header = new byte[Frame.HEADER_SIZE];
+        Frame.writeHeader(header, Frame.TYPE_DATA, 8, 1, 1, Frame.MAX_PAYLOAD + 1);
+        decoder.feed(header, 0, header.length, collect);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsNegativeLength() throws IOException {
+        byte[] header = new byte[Frame.HEADER_SIZE];
+        Frame.writeHeader(header, Frame.TYPE_DATA, 8, 1, 1, -1);
+        decoder.feed(header, 0, header.length, collect);
+    }
+
+    @Test
+    public void checksTheHeaderOnlyOnceItIsComplete() throws IOException {
+        byte[] header = new byte[Frame.HEADER_SIZE];
+        Frame.writeHeader(header, Frame.TYPE_DATA, 8, 1, 1, Frame.MAX_PAYLOAD + 1);
+        decoder.feed(header, 0, Frame.HEADER_SIZE - 1, collect);
+        try {
+            decoder.feed(header, Frame.HEADER_SIZE - 1, 1, collect);
+            fail("Expected the length to be rejected");
+        } catch (ProtocolException expected) {
+            assertEquals(0, decoded.size());
+        }
+    }
+
+    private void assertFrames(List<byte[]> expected) {
+        assertEquals(expected.size(), decoded.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("frame " + i, expected.get(i), decoded.get(i));
+        }
+    }
+
+    private static List<byte[]> frames(int... payloadLengths) {
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < payloadLengths.length; i++) {
+            frames.add(frame(i + 1, payloadLengths[i]));
+        }
+        return frames;
+    }
+
+    private static byte[] frame(long idLow, int payloadLength) {
+        byte[] frame = new byte[Frame.HEADER_SIZE + payloadLength];
+        Frame.writeHeader(frame, Frame.TYPE_DATA, 8, 0x0123456789abcdefL, idLow, payloadLength);
+        for (int i = Frame.HEADER_SIZE; i < frame.length; i++) {
+            frame[i] = (byte) (i * 31 + idLow);
+        }
+        return frame;
+    }
+
+    private static byte[] concat(List<byte[]> frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+}
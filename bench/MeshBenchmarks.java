@@ -0,0 +1,197 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Micro-benchmarks for the message hot path: id generation, payload crypto,
+// compression, frame parsing, dedup lookups and relay fan-out to in-memory peers.
+// Each benchmark runs timed warmup iterations followed by measured ones and
+// reports throughput plus bytes allocated per operation (what JMH's -prof gc
+// shows as gc.alloc.rate.norm), taken from the per-thread allocation counter.
+// Build and run against the sources:
+//   javac -cp lib/bluecove-2.1.1.jar -d out src/*.java bench/*.java
+//   java -cp out:lib/bluecove-2.1.1.jar MeshBenchmarks [name-filter]
+public class MeshBenchmarks {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    private static final int BATCH = 256;
+    private static final int DEDUP_ENTRIES = 1 << 15;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are folded in here so the JIT cannot drop the measured work.
+    private static long blackhole;
+
+    interface Benchmark {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("bluemesh.meshSecret") == null) {
+            System.setProperty("bluemesh.meshSecret", "benchmark");
+        }
+        String filter = args.length > 0 ? args[0] : "";
+        byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) i;
+        }
+        CryptoSession crypto = new CryptoSession(key);
+
+        MeshNode node = new MeshNode(1, new MemoryTransport("bench"), null);
+        try {
+            run(filter, "generateMsgId", node::nextMessageId);
+        } finally {
+            node.shutdown();
+        }
+
+        // Expect about 0.9 KB/op for crypto at any size: that is Cipher.init, see CryptoSession.
+        for (int size : new int[] {64, 1024}) {
+            ByteBuffer plaintext = ByteBuffer.wrap(message(size));
+            ByteBuffer sealed = ByteBuffer.allocate(CryptoSession.sealedSize(size));
+            ByteBuffer opened = ByteBuffer.allocate(size);
+            run(filter, "encrypt-" + size, () -> {
+                plaintext.clear();
+                sealed.clear();
+                return crypto.encrypt(Frame.TYPE_DATA, (byte) 0, 1, 2, 0, plaintext, sealed);
+            });
+            sealed.clear();
+            plaintext.clear();
+            crypto.encrypt(Frame.TYPE_DATA, (byte) 0, 1, 2, 0, plaintext, sealed);
+            run(filter, "decrypt-" + size, () -> {
+                sealed.clear();
+                opened.clear();
+                return crypto.decrypt(Frame.TYPE_DATA, (byte) 0, 1, 2, 0, sealed, opened);
+            });
+        }
+
+        for (int size : new int[] {64, 1024}) {
+            byte[] text = message(size);
+            byte[] packed = new byte[size];
+            run(filter, "compress-" + size, () -> PayloadCompressor.compress(text, 0, text.length, packed));
+            int packedLength = PayloadCompressor.compress(text, 0, text.length, packed);
+            run(filter, "decompress-" + size, () -> PayloadCompressor.decompress(packed, 0, packedLength).length);
+        }
+
+        byte[] encoded = sealedFrame(crypto, 7, 1, 64);
+        ByteBuffer source = ByteBuffer.wrap(encoded);
+        Frame decoded = new Frame();
+        run(filter, "parse-decode", () -> {
+            source.clear();
+            FrameCodec.decode(source, decoded);
+            return decoded.getIdLow();
+        });
+        ByteArrayInputStream bytes = new ByteArrayInputStream(encoded);
+        DataInputStream stream = new DataInputStream(bytes);
+        run(filter, "parse-stream", () -> {
+            bytes.reset();
+            FrameCodec.readFrame(stream, decoded);
+            return decoded.getPayloadLength();
+        });
+
+        DedupCache seen = new DedupCache(1 << 16, 10 * 60 * 1000L);
+        for (int i = 1; i <= DEDUP_ENTRIES; i++) {
+            seen.markSeen(7, i);
+        }
+        long[] cursor = {0};
+        run(filter, "dedup-hit", () -> seen.contains(7, (cursor[0]++ & (DEDUP_ENTRIES - 1)) + 1) ? 1 : 0);
+        run(filter, "dedup-miss", () -> seen.contains(8, ++cursor[0]) ? 1 : 0);
+
+        for (int peers : new int[] {1, 7, 32}) {
+            List<CountingSink> sinks = new ArrayList<>();
+            for (int i = 0; i < peers; i++) {
+                sinks.add(new CountingSink());
+            }
+            MeshRelay relay = new MeshRelay(new DedupCache(1 << 16, 10 * 60 * 1000L), sinks, null);
+            Frame frame = Frame.wrap(sealedFrame(crypto, 9, 0, 64));
+            ByteBuffer header = ByteBuffer.wrap(frame.getBuffer());
+            FrameSink from = new CountingSink();
+            long[] id = {0};
+            run(filter, "forwardToAll-" + peers, () -> {
+                header.putLong(Frame.OFFSET_ID_LOW, ++id[0]);
+                return relay.relay(frame, from) ? 1 : 0;
+            });
+        }
+        if (blackhole == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void run(String filter, String name, Benchmark benchmark) throws Exception {
+        if (!name.contains(filter)) {
+            return;
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(benchmark);
+        }
+        double[] throughput = new double[MEASURED_ITERATIONS];
+        double allocated = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long bytesBefore = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            long ops = iteration(benchmark);
+            long elapsed = System.nanoTime() - start;
+            long bytes = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesBefore;
+            throughput[i] = ops * 1e9 / elapsed;
+            allocated += (double) bytes / ops;
+        }
+        double mean = 0;
+        for (double value : throughput) {
+            mean += value;
+        }
+        mean /= throughput.length;
+        double variance = 0;
+        for (double value : throughput) {
+            variance += (value - mean) * (value - mean);
+        }
+        double error = Math.sqrt(variance / (throughput.length - 1));
+        System.out.printf("%-20s %14.0f +- %10.0f ops/s %10.1f B/op%n", name, mean, error, allocated / MEASURED_ITERATIONS);
+    }
+
+    private static long iteration(Benchmark benchmark) throws Exception {
+        long ops = 0;
+        long deadline = System.nanoTime() + ITERATION_NANOS;
+        long result = 0;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                result += benchmark.run();
+            }
+            ops += BATCH;
+        } while (System.nanoTime() < deadline);
+        blackhole += result;
+        return ops;
+    }
+
+    private static byte[] message(int size) {
+        byte[] text = new byte[size];
+        byte[] pattern = "bluemesh benchmark payload ".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < size; i++) {
+            text[i] = pattern[i % pattern.length];
+        }
+        return text;
+    }
+
+    private static byte[] sealedFrame(CryptoSession crypto, long idHigh, long idLow, int size) throws Exception {
+        int payloadLength = CryptoSession.sealedSize(size);
+        byte[] frame = new byte[Frame.HEADER_SIZE + payloadLength];
+        ByteBuffer out = ByteBuffer.wrap(frame);
+        FrameCodec.writeHeader(out, Frame.TYPE_DATA, (byte) 0, 0, MeshConfig.TTL, idHigh, idLow, payloadLength);
+        crypto.encrypt(Frame.TYPE_DATA, (byte) 0, idHigh, idLow, 0, ByteBuffer.wrap(message(size)), out);
+        return frame;
+    }
+
+    // Stand-in for a peer link: accepts every frame without queueing it.
+    private static final class CountingSink implements FrameSink {
+        private long frames;
+
+        @Override
+        public boolean enqueue(byte[] frame) {
+            frames++;
+            return true;
+        }
+    }
+}
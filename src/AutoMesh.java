@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless link management: keeps a node at a target number of links by
+// dialing candidates in parallel. Each dial has a timeout; a candidate that
+// fails is retried after an exponential, jittered backoff. Candidates that
+// add coverage come first: nodes that no current peer reported as its
+// neighbor, then unknown nodes, then ones already two hops away. Two nodes
+// dialing each other at once is resolved by MeshNode, which keeps one link.
+// Candidates often come without a node id (plain TCP addresses), so the id
+// each dial reached is remembered and an address whose node is already
+// linked is not dialed again.
+final class AutoMesh {
+    private final MeshNode node;
+    private final CandidateSource source;
+    private final int targetDegree;
+    private final Random random = new Random();
+    private final Map<String, Long> dialing = new ConcurrentHashMap<>();
+    private final Map<String, Backoff> backoff = new ConcurrentHashMap<>();
+    private final Map<String, Long> dialedIds = new ConcurrentHashMap<>();
+    private final LongAdder dials = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile long startedAt;
+    private volatile long formedMillis = -1;
+    private volatile boolean running;
+
+    interface CandidateSource {
+        List<Candidate> getCandidates() throws InterruptedException;
+    }
+
+    static final class Candidate {
+        private final String address;
+        private final long nodeId;
+
+        // nodeId is 0 when it is not known before the handshake.
+        Candidate(String address, long nodeId) {
+            this.address = address;
+            this.nodeId = nodeId;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getNodeId() {
+            return nodeId;
+        }
+    }
+
+    private static final class Backoff {
+        int failures;
+        long retryAt;
+    }
+
+    public AutoMesh(MeshNode node, CandidateSource source, int targetDegree) {
+        this.node = node;
+        this.source = source;
+        this.targetDegree = Math.min(targetDegree, MeshConfig.MAX_LINKS);
+    }
+
+    public boolean start() {
+        running = true;
+        startedAt = System.nanoTime();
+        return node.getRuntime().submit("automesh", this::run);
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public int getTargetDegree() {
+        return targetDegree;
+    }
+
+    public boolean isFormed() {
+        return formedMillis >= 0;
+    }
+
+    // Time from start() until the node first reached its target degree, or -1.
+    public long getFormedMillis() {
+        return formedMillis;
+    }
+
+    private void run() {
+        try {
+            while (running && !node.getRuntime().isShutdown()) {
+                int degree = node.getLinks().size();
+                if (formedMillis < 0 && degree >= targetDegree) {
+                    formedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                    Log.info("Mesh formed: %d links in %d ms (%s)", degree, formedMillis, this);
+                }
+                if (degree + dialing.size() < targetDegree) {
+                    for (Candidate candidate : rank(source.getCandidates())) {
+                        if (node.getLinks().size() + dialing.size() >= targetDegree) {
+                            break;
+                        }
+                        dial(candidate);
+                    }
+                }
+                Thread.sleep(MeshConfig.AUTO_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<Candidate> rank(List<Candidate> candidates) {
+        long now = System.currentTimeMillis();
+        String self = node.getListenAddress();
+        List<Candidate> uncovered = new ArrayList<>();
+        List<Candidate> unknown = new ArrayList<>();
+        List<Candidate> covered = new ArrayList<>();
+        NeighborTable neighbors = node.getNeighbors();
+        for (Candidate candidate : candidates) {
+            long id = candidate.getNodeId() != 0 ? candidate.getNodeId() : dialedIds.getOrDefault(candidate.getAddress(), 0L);
+            Backoff delay = backoff.get(candidate.getAddress());
+            if (candidate.getAddress().equals(self) || id == node.getNodeId() || dialing.containsKey(candidate.getAddress())
+                    || node.getLinks().containsKey(candidate.getAddress())
+                    || delay != null && delay.retryAt > now || id != 0 && node.isLinkedTo(id)) {
+                continue;
+            }
+            if (id == 0) {
+                unknown.add(candidate);
+            } else if (neighbors.isTwoHop(id)) {
+                covered.add(candidate);
+            } else {
+                uncovered.add(candidate);
+            }
+        }
+        Collections.shuffle(uncovered, random);
+        Collections.shuffle(unknown, random);
+        Collections.shuffle(covered, random);
+        uncovered.addAll(unknown);
+        uncovered.addAll(covered);
+        return uncovered;
+    }
+
+    private void dial(Candidate candidate) {
+        String address = candidate.getAddress();
+        dialing.put(address, System.nanoTime());
+        dials.increment();
+        node.dial(address, MeshConfig.DIAL_TIMEOUT_MS).whenComplete((link, error) -> {
+            dialing.remove(address);
+            if (error == null) {
+                dialedIds.put(address, link.getSession().getRemoteNodeId());
+                succeeded.increment();
+                backoff.remove(address);
+                return;
+            }
+            if (error instanceof TimeoutException) {
+                timeouts.increment();
+            } else {
+                failed.increment();
+            }
+            Backoff delay = backoff.computeIfAbsent(address, key -> new Backoff());
+            synchronized (delay) {
+                delay.failures++;
+                long wait = Math.min(MeshConfig.BACKOFF_MAX_MS, MeshConfig.BACKOFF_BASE_MS << Math.min(delay.failures - 1, 20));
+                delay.retryAt = System.currentTimeMillis() + wait / 2 + (long) (random.nextDouble() * wait / 2);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "target=" + targetDegree + " links=" + node.getLinks().size() + " formed="
+                + (formedMillis >= 0 ? formedMillis + "ms" : "no") + " dials=" + dials.sum() + " succeeded=" + succeeded.sum()
+                + " failed=" + failed.sum() + " timeouts=" + timeouts.sum() + " dialing=" + dialing.size()
+                + " duplicatesClosed=" + node.getDuplicateLinks();
+    }
+}
@@ -0,0 +1,91 @@
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.UUID;
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.StreamConnectionNotifier;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// JSR-82 RFCOMM (btspp) transport. Addresses passed to connect() are
+// btspp:// service URLs as returned by SDP.
+final class BluetoothTransport implements Transport {
+    private final UUID serviceUuid;
+    private final String serviceName;
+
+    public BluetoothTransport(UUID serviceUuid, String serviceName) {
+        this.serviceUuid = serviceUuid;
+        this.serviceName = serviceName;
+    }
+
+    @Override
+    public String getName() {
+        return "bluetooth";
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        String url = "btspp://localhost:" + serviceUuid + ";name=" + serviceName;
+        StreamConnectionNotifier notifier = (StreamConnectionNotifier) Connector.open(url);
+        return new TransportServer() {
+            @Override
+            public String getLocalAddress() {
+                return url;
+            }
+
+            @Override
+            public TransportChannel accept() throws IOException {
+                return new Channel(notifier.acceptAndOpen());
+            }
+
+            @Override
+            public void close() throws IOException {
+                notifier.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportChannel connect(String address) throws IOException {
+        return new Channel((StreamConnection) Connector.open(address));
+    }
+
+    private static final class Channel implements TransportChannel {
+        private final StreamConnection connection;
+        private final RemoteDevice device;
+
+        Channel(StreamConnection connection) throws IOException {
+            this.connection = connection;
+            this.device = RemoteDevice.getRemoteDevice(connection);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return device.getBluetoothAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            try {
+                return device.getFriendlyName(false);
+            } catch (IOException e) {
+                return "Unknown Device";
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connection.openInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return connection.openOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+}
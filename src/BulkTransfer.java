@@ -0,0 +1,724 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Moves files end to end across the mesh as a series of unicast messages.
+// The sender announces a manifest (size, chunk size, name and a SHA-256 per
+// chunk), then streams fixed-size chunks, each sealed like any other
+// message, with at most a window of them unacknowledged. The receiver writes
+// chunks in any order straight into a memory-mapped part file and
+// acknowledges the contiguous prefix plus a bitmap of the following chunks.
+// Unacknowledged chunks are resent with exponential backoff, so a transfer
+// stalls while the route is down and continues from the last acknowledged
+// chunk once it is back. A mapped state file beside the part file records
+// which chunks arrived, so a restarted receiver resumes too. The transfer id
+// is derived from the manifest and destination, so sending the same file
+// again after a sender restart resumes as well. Neither side holds the whole
+// file on the heap. A receiver refuses manifests over its size limit, or
+// beyond its number of concurrent incoming transfers, before creating any
+// file, and remembers only the most recent completed transfers. An incoming
+// transfer that hears nothing for the timeout gives up its slot and mappings
+// but keeps its files, so the sender's next manifest resumes it.
+// Timed work (ticks, delayed acks, expiry) and finishing a received file are
+// handed to the worker pool, never run on the timer or delivery thread.
+// Message layout: kind (1) || transfer id (8) || fields
+//   manifest: size (8) || chunk size (4) || chunks (4) || name length (2) || name || hashes
+//   chunk:    index (4) || data
+//   ack:      contiguous chunks (4, -1 if the transfer is unknown, -2 if refused) || bitmap of the next 64 (8)
+final class BulkTransfer {
+    static final byte KIND_MANIFEST = 1;
+    static final byte KIND_CHUNK = 2;
+    static final byte KIND_ACK = 3;
+    static final int HEADER_SIZE = 9;
+    static final int HASH_SIZE = 32;
+    // Leaves room for the headers, destination prefix and sealing overhead.
+    static final int MAX_CHUNK_SIZE = Frame.MAX_PAYLOAD - 1024;
+    static final int MAX_CHUNKS = (Frame.MAX_PAYLOAD - 1024) / HASH_SIZE;
+    private static final int SACK_BITS = 64;
+    private static final int MAX_NAME_BYTES = 255;
+    private static final int UNKNOWN_TRANSFER = -1;
+    private static final int REFUSED_TRANSFER = -2;
+    private static final int MAX_COMPLETED = 1024;
+    private static final int ACK_EVERY = 4;
+    private static final long ACK_DELAY_MS = 20;
+    private static final int MAX_BACKOFF_SHIFT = 4;
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".state";
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Sender sender;
+    private final Worker worker;
+    private final TaskScheduler scheduler;
+    private final MessageListener listener;
+    private final Path directory;
+    private final int chunkSize;
+    private final int window;
+    private final long rtoMillis;
+    private final long timeoutMillis;
+    private final long maxBytes;
+    private final int maxIncoming;
+    private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<String, Incoming> incoming = new ConcurrentHashMap<>();
+    // Lets late manifests and chunks of a finished transfer still be acknowledged.
+    private final Map<String, Integer> completed = Collections.synchronizedMap(
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_COMPLETED;
+                }
+            });
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder filesReceived = new LongAdder();
+    private final LongAdder chunksSent = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder chunksReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder hashFailures = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    interface Sender {
+        // Seals and routes one message; false if there is no route right now.
+        boolean send(long destination, ByteBuffer body);
+    }
+
+    interface Worker {
+        // Runs the task on another thread; false if it was rejected.
+        boolean submit(String name, Runnable task);
+    }
+
+    public BulkTransfer(Sender sender, Worker worker, TaskScheduler scheduler, MessageListener listener, Path directory, int chunkSize,
+            int window, long rtoMillis, long timeoutMillis, long maxBytes, int maxIncoming) {
+        this.sender = sender;
+        this.worker = worker;
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.directory = directory;
+        this.chunkSize = Math.max(1, Math.min(chunkSize, MAX_CHUNK_SIZE));
+        this.window = Math.max(1, Math.min(window, SACK_BITS));
+        this.rtoMillis = rtoMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.maxBytes = maxBytes;
+        this.maxIncoming = maxIncoming;
+    }
+
+    // Completes once the destination has acknowledged every chunk.
+    public CompletableFuture<Void> send(long destination, Path file) throws IOException {
+        MappedByteBuffer source;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to transfer");
+            }
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int size = source.capacity();
+        int chunk = Math.max(chunkSize, (int) ((size + (long) MAX_CHUNKS - 1) / MAX_CHUNKS));
+        int count = (size + chunk - 1) / chunk;
+        byte[] name = encodeName(String.valueOf(file.getFileName()));
+        ByteBuffer manifest = ByteBuffer.allocate(18 + name.length + count * HASH_SIZE);
+        manifest.putLong(size).putInt(chunk).putInt(count).putShort((short) name.length).put(name);
+        MessageDigest digest = SHA256.get();
+        for (int i = 0; i < count; i++) {
+            digest.update(slice(source, i, chunk));
+            manifest.put(digest.digest());
+        }
+        digest.update(manifest.array());
+        digest.update(ByteBuffer.allocate(8).putLong(0, destination));
+        long id = ByteBuffer.wrap(digest.digest()).getLong();
+
+        Outgoing transfer = new Outgoing(id, destination, source, chunk, count, manifest.array(), rtoMillis);
+        Outgoing existing = outgoing.putIfAbsent(id, transfer);
+        if (existing != null) {
+            return existing.done;
+        }
+        tick(transfer);
+        return transfer.done;
+    }
+
+    // Handles a decrypted transfer message addressed to this node.
+    public void receive(long origin, ByteBuffer body) {
+        try {
+            byte kind = body.get();
+            long id = body.getLong();
+            switch (kind) {
+                case KIND_MANIFEST:
+                    receiveManifest(origin, id, body);
+                    break;
+                case KIND_CHUNK:
+                    receiveChunk(origin, id, body);
+                    break;
+                case KIND_ACK:
+                    receiveAck(origin, id, body.getInt(), body.getLong());
+                    break;
+                default:
+                    Log.warn("Unknown transfer message %d from %x", kind, origin);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.warn("Malformed transfer message from %x", origin);
+        } catch (IOException e) {
+            Log.warn("Transfer from %x failed: %s", origin, e.getMessage());
+        }
+    }
+
+    public int getSending() {
+        return outgoing.size();
+    }
+
+    public int getReceiving() {
+        return incoming.size();
+    }
+
+    public long getChunksSent() {
+        return chunksSent.sum();
+    }
+
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    public long getChunksReceived() {
+        return chunksReceived.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getHashFailures() {
+        return hashFailures.sum();
+    }
+
+    public long getRefused() {
+        return refused.sum();
+    }
+
+    public long getAbandoned() {
+        return abandoned.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "sending=" + getSending() + " receiving=" + getReceiving() + " sent=" + filesSent.sum() + " received="
+                + filesReceived.sum() + " chunksSent=" + getChunksSent() + " retransmits=" + getRetransmits()
+                + " chunksReceived=" + getChunksReceived() + " hashFailures=" + getHashFailures() + " refused=" + getRefused() + " abandoned=" + getAbandoned();
+    }
+
+    // Sender side: (re)sends the manifest until it is acknowledged, then
+    // resends chunks whose timeout passed and fills the window.
+    private void tick(Outgoing transfer) {
+        long delay;
+        synchronized (transfer) {
+            if (transfer.done.isDone()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now - transfer.lastProgress > timeoutMillis) {
+                finish(transfer, new IOException("No progress sending to " + Long.toHexString(transfer.destination)
+                        + " for " + timeoutMillis + " ms"));
+                return;
+            }
+            boolean resent = false;
+            if (!transfer.manifestAcked) {
+                if (now - transfer.manifestSentAt >= transfer.rto) {
+                    boolean retry = transfer.manifestSentAt != 0;
+                    if (sender.send(transfer.destination, transfer.message(KIND_MANIFEST, transfer.manifest.length)
+                            .put(transfer.manifest).flip())) {
+                        transfer.manifestSentAt = now;
+                        resent = retry;
+                    }
+                }
+            } else {
+                for (int i = transfer.base; i < transfer.next; i++) {
+                    if (!transfer.acked.get(i) && now - transfer.sentAt[i] >= transfer.rto && sendChunk(transfer, i, now)) {
+                        retransmits.increment();
+                        resent = true;
+                    }
+                }
+                fill(transfer, now);
+            }
+            if (resent) {
+                transfer.rto = Math.min(transfer.rto * 2, rtoMillis << MAX_BACKOFF_SHIFT);
+            }
+            delay = transfer.rto;
+        }
+        later("transfer-tick", () -> tick(transfer), delay);
+    }
+
+    // The timer only hands the task to the worker pool; a rejected task is
+    // retried after the same delay.
+    private void later(String name, Runnable task, long delayMillis) {
+        scheduler.schedule(() -> {
+            if (!worker.submit(name, task)) {
+                later(name, task, delayMillis);
+            }
+        }, delayMillis);
+    }
+
+    private void fill(Outgoing transfer, long now) {
+        while (transfer.next < transfer.chunkCount && transfer.next - transfer.base < SACK_BITS
+                && transfer.inFlight() < window) {
+            if (!transfer.acked.get(transfer.next) && !sendChunk(transfer, transfer.next, now)) {
+                break;
+            }
+            transfer.next++;
+        }
+    }
+
+    private boolean sendChunk(Outgoing transfer, int index, long now) {
+        ByteBuffer data = slice(transfer.source, index, transfer.chunkSize);
+        ByteBuffer body = transfer.message(KIND_CHUNK, 4 + data.remaining()).putInt(index).put(data).flip();
+        if (!sender.send(transfer.destination, body)) {
+            return false;
+        }
+        transfer.sentAt[index] = now;
+        chunksSent.increment();
+        return true;
+    }
+
+    private void receiveAck(long origin, long id, int contiguous, long bitmap) {
+        Outgoing transfer = outgoing.get(id);
+        if (transfer == null || transfer.destination != origin) {
+            return;
+        }
+        synchronized (transfer) {
+            if (transfer.done.isDone()) {
+                return;
+            }
+            if (contiguous == REFUSED_TRANSFER) {
+                finish(transfer, new IOException(Long.toHexString(origin) + " refused the transfer"));
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (contiguous == UNKNOWN_TRANSFER) {
+                // Receiver lost track of it (restarted); it resumes from its state file.
+                transfer.manifestAcked = false;
+                transfer.manifestSentAt = 0;
+                return;
+            }
+            int before = transfer.acked.cardinality();
+            transfer.manifestAcked = true;
+            transfer.acked.set(0, Math.min(Math.max(contiguous, 0), transfer.chunkCount));
+            for (int bit = 0; bit < SACK_BITS; bit++) {
+                int index = contiguous + 1 + bit;
+                if ((bitmap >>> bit & 1) != 0 && index < transfer.chunkCount) {
+                    transfer.acked.set(index);
+                }
+            }
+            if (transfer.acked.cardinality() > before || transfer.manifestSentAt != 0) {
+                transfer.manifestSentAt = 0;
+                transfer.lastProgress = now;
+                transfer.rto = rtoMillis;
+            }
+            transfer.base = transfer.acked.nextClearBit(transfer.base);
+            transfer.next = Math.max(transfer.next, transfer.base);
+            if (transfer.base >= transfer.chunkCount) {
+                finish(transfer, null);
+            } else {
+                fill(transfer, now);
+            }
+        }
+    }
+
+    private void finish(Outgoing transfer, IOException failure) {
+        outgoing.remove(transfer.id, transfer);
+        if (failure == null) {
+            filesSent.increment();
+            transfer.done.complete(null);
+        } else {
+            transfer.done.completeExceptionally(failure);
+        }
+    }
+
+    // Receiver side. Runs on the delivery thread; delayed acks run on the timer.
+    private void receiveManifest(long origin, long id, ByteBuffer body) throws IOException {
+        String key = key(origin, id);
+        Integer done = completed.get(key);
+        if (done != null) {
+            sendAck(origin, id, done, 0);
+            return;
+        }
+        Incoming transfer = incoming.get(key);
+        if (transfer == null) {
+            byte[] manifest = new byte[body.remaining()];
+            body.get(manifest);
+            transfer = new Incoming(key, origin, id, manifest, directory.resolve(key + PART_SUFFIX),
+                    directory.resolve(key + STATE_SUFFIX));
+            if (transfer.size > maxBytes || incoming.size() >= maxIncoming) {
+                refused.increment();
+                Log.warn("Refusing %s (%d bytes) from %x: limit is %d bytes and %d transfers", transfer.name,
+                        transfer.size, origin, maxBytes, maxIncoming);
+                sendAck(origin, id, REFUSED_TRANSFER, 0);
+                return;
+            }
+            open(transfer, manifest);
+            incoming.put(key, transfer);
+            Incoming opened = transfer;
+            later("transfer-expiry", () -> expireIfIdle(opened), timeoutMillis);
+        }
+        synchronized (transfer) {
+            if (transfer.data == null) {
+                sendAck(origin, id, UNKNOWN_TRANSFER, 0);
+                return;
+            }
+            transfer.lastActivity = System.currentTimeMillis();
+            if (transfer.base >= transfer.chunkCount) {
+                finishIncoming(transfer);
+            } else {
+                acknowledge(transfer);
+            }
+        }
+    }
+
+    private void receiveChunk(long origin, long id, ByteBuffer body) throws IOException {
+        String key = key(origin, id);
+        Incoming transfer = incoming.get(key);
+        if (transfer == null) {
+            Integer done = completed.get(key);
+            sendAck(origin, id, done != null ? done : UNKNOWN_TRANSFER, 0);
+            return;
+        }
+        int index = body.getInt();
+        synchronized (transfer) {
+            if (transfer.data == null) {
+                sendAck(origin, id, UNKNOWN_TRANSFER, 0);
+                return;
+            }
+            transfer.lastActivity = System.currentTimeMillis();
+            if (index < 0 || index >= transfer.chunkCount) {
+                throw new IllegalArgumentException("chunk " + index);
+            }
+            int previousBase = transfer.base;
+            boolean duplicate = transfer.isPresent(index);
+            if (!duplicate) {
+                if (body.remaining() != transfer.chunkLength(index) || !transfer.matches(index, body)) {
+                    hashFailures.increment();
+                    Log.warn("Chunk %d of %s failed verification", index, transfer.name);
+                    return;
+                }
+                ByteBuffer target = transfer.data.duplicate();
+                target.position(index * transfer.chunkSize);
+                target.put(body);
+                transfer.setPresent(index);
+                chunksReceived.increment();
+                bytesReceived.add(transfer.chunkLength(index));
+                transfer.base = transfer.nextMissing(transfer.base);
+            }
+            transfer.unacked++;
+            if (transfer.base >= transfer.chunkCount) {
+                finishIncoming(transfer);
+            } else if (duplicate || index != previousBase || transfer.unacked >= ACK_EVERY) {
+                acknowledge(transfer);
+            } else if (!transfer.ackScheduled) {
+                transfer.ackScheduled = true;
+                later("transfer-ack", () -> {
+                    synchronized (transfer) {
+                        transfer.ackScheduled = false;
+                        if (transfer.unacked > 0 && incoming.get(transfer.key) == transfer && !transfer.completing) {
+                            acknowledge(transfer);
+                        }
+                    }
+                }, ACK_DELAY_MS);
+            }
+        }
+    }
+
+    private void acknowledge(Incoming transfer) {
+        transfer.unacked = 0;
+        long bitmap = 0;
+        for (int bit = 0; bit < SACK_BITS; bit++) {
+            int index = transfer.base + 1 + bit;
+            if (index < transfer.chunkCount && transfer.isPresent(index)) {
+                bitmap |= 1L << bit;
+            }
+        }
+        sendAck(transfer.origin, transfer.id, transfer.base, bitmap);
+    }
+
+    private void sendAck(long origin, long id, int contiguous, long bitmap) {
+        ByteBuffer body = ByteBuffer.allocate(HEADER_SIZE + 12);
+        body.put(KIND_ACK).putLong(id).putInt(contiguous).putLong(bitmap).flip();
+        sender.send(origin, body);
+    }
+
+    // Called with the transfer locked once every chunk is present. Chunks
+    // and manifests that arrive while the file is being finished are ignored;
+    // the completion ack covers them.
+    private void finishIncoming(Incoming transfer) {
+        if (transfer.completing) {
+            return;
+        }
+        transfer.completing = true;
+        if (!worker.submit("transfer-complete", () -> complete(transfer))) {
+            // Retried on the sender's next manifest or chunk.
+            transfer.completing = false;
+        }
+    }
+
+    private void complete(Incoming transfer) {
+        Path target;
+        try {
+            transfer.data.force();
+            target = uniqueTarget(transfer.name);
+            Files.move(transfer.partFile, target);
+            Files.deleteIfExists(transfer.stateFile);
+        } catch (IOException e) {
+            Log.warn("Finishing %s from %x failed: %s", transfer.name, transfer.origin, e.getMessage());
+            synchronized (transfer) {
+                transfer.completing = false;
+            }
+            return;
+        }
+        completed.put(transfer.key, transfer.chunkCount);
+        incoming.remove(transfer.key, transfer);
+        filesReceived.increment();
+        sendAck(transfer.origin, transfer.id, transfer.chunkCount, 0);
+        Log.info("Received %s (%d bytes) from %x", target.getFileName(), transfer.size, transfer.origin);
+        listener.onFileReceived(transfer.origin, transfer.name, target);
+    }
+
+    // Frees the slot of a transfer idle for the timeout. Its mappings go with
+    // it; the part and state files are forced and kept for a later resume.
+    private void expireIfIdle(Incoming transfer) {
+        synchronized (transfer) {
+            if (incoming.get(transfer.key) != transfer || transfer.completing) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - transfer.lastActivity;
+            if (idle < timeoutMillis) {
+                later("transfer-expiry", () -> expireIfIdle(transfer), timeoutMillis - idle);
+                return;
+            }
+            incoming.remove(transfer.key, transfer);
+            transfer.data.force();
+            transfer.state.force();
+            transfer.data = null;
+            transfer.state = null;
+        }
+        abandoned.increment();
+        Log.info("Dropped %s from %x after %d ms without progress; its files are kept for resume", transfer.name,
+                transfer.origin, timeoutMillis);
+    }
+
+    // Opens the part and state files, resuming from them when they belong to
+    // the same manifest. Chunks recorded as present are verified again, since
+    // the state may have reached the disk before the data did.
+    private void open(Incoming transfer, byte[] manifest) throws IOException {
+        Files.createDirectories(directory);
+        int stateSize = 4 + manifest.length + (transfer.chunkCount + 7) / 8;
+        boolean resume = false;
+        try (FileChannel channel = FileChannel.open(transfer.stateFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (channel.size() == stateSize) {
+                ByteBuffer existing = ByteBuffer.allocate(stateSize);
+                while (existing.hasRemaining() && channel.read(existing) >= 0) {
+                    // Keep reading
+                }
+                resume = existing.getInt(0) == manifest.length
+                        && Arrays.equals(existing.array(), 4, 4 + manifest.length, manifest, 0, manifest.length);
+            }
+            if (!resume) {
+                channel.truncate(0);
+            }
+            transfer.state = channel.map(FileChannel.MapMode.READ_WRITE, 0, stateSize);
+        }
+        try (FileChannel channel = FileChannel.open(transfer.partFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (!resume) {
+                channel.truncate(0);
+            }
+            transfer.data = channel.map(FileChannel.MapMode.READ_WRITE, 0, transfer.size);
+        }
+        if (resume) {
+            int present = 0;
+            for (int i = 0; i < transfer.chunkCount; i++) {
+                if (!transfer.isPresent(i)) {
+                    continue;
+                }
+                if (transfer.matches(i, slice(transfer.data, i, transfer.chunkSize))) {
+                    present++;
+                } else {
+                    transfer.clearPresent(i);
+                }
+            }
+            Log.info("Resuming %s from %x: %d of %d chunks present", transfer.name, transfer.origin, present,
+                    transfer.chunkCount);
+        } else {
+            transfer.state.putInt(0, manifest.length);
+            transfer.state.put(4, manifest);
+        }
+        transfer.base = transfer.nextMissing(0);
+    }
+
+    private Path uniqueTarget(String name) {
+        Path target = directory.resolve(name);
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; Files.exists(target); i++) {
+            target = directory.resolve(stem + "-" + i + extension);
+        }
+        return target;
+    }
+
+    private static ByteBuffer slice(ByteBuffer source, int index, int chunkSize) {
+        ByteBuffer chunk = source.duplicate();
+        int start = index * chunkSize;
+        chunk.limit((int) Math.min(source.capacity(), (long) start + chunkSize)).position(start);
+        return chunk;
+    }
+
+    private static String key(long origin, long id) {
+        return String.format("%016x-%016x", origin, id);
+    }
+
+    // Keeps only characters that are safe in a file name on any platform.
+    static String sanitize(String name) {
+        String safe = name.replaceAll("[^A-Za-z0-9._ -]", "_").replaceAll("^[. ]+", "").trim();
+        return safe.isEmpty() ? "file" : safe;
+    }
+
+    private static byte[] encodeName(String name) {
+        byte[] bytes = sanitize(name).getBytes(StandardCharsets.UTF_8);
+        return bytes.length > MAX_NAME_BYTES ? Arrays.copyOf(bytes, MAX_NAME_BYTES) : bytes;
+    }
+
+    private static final class Outgoing {
+        final long id;
+        final long destination;
+        final MappedByteBuffer source;
+        final int chunkSize;
+        final int chunkCount;
+        final byte[] manifest;
+        final BitSet acked = new BitSet();
+        final long[] sentAt;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        int base;
+        int next;
+        boolean manifestAcked;
+        long manifestSentAt;
+        long rto;
+        long lastProgress = System.currentTimeMillis();
+
+        Outgoing(long id, long destination, MappedByteBuffer source, int chunkSize, int chunkCount, byte[] manifest,
+                long rto) {
+            this.id = id;
+            this.destination = destination;
+            this.source = source;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.manifest = manifest;
+            this.sentAt = new long[chunkCount];
+            this.rto = rto;
+        }
+
+        ByteBuffer message(byte kind, int length) {
+            return ByteBuffer.allocate(HEADER_SIZE + length).put(kind).putLong(id);
+        }
+
+        int inFlight() {
+            int count = 0;
+            for (int i = base; i < next; i++) {
+                if (!acked.get(i)) count++;
+            }
+            return count;
+        }
+    }
+
+    private static final class Incoming {
+        final String key;
+        final long origin;
+        final long id;
+        final long size;
+        final int chunkSize;
+        final int chunkCount;
+        final String name;
+        final byte[] hashes;
+        final int bitmapOffset;
+        final Path partFile;
+        final Path stateFile;
+        MappedByteBuffer data;
+        MappedByteBuffer state;
+        int base;
+        int unacked;
+        boolean ackScheduled;
+        boolean completing;
+        long lastActivity = System.currentTimeMillis();
+
+        Incoming(String key, long origin, long id, byte[] manifest, Path partFile, Path stateFile) {
+            ByteBuffer in = ByteBuffer.wrap(manifest);
+            this.key = key;
+            this.origin = origin;
+            this.id = id;
+            this.size = in.getLong();
+            this.chunkSize = in.getInt();
+            this.chunkCount = in.getInt();
+            byte[] nameBytes = new byte[in.getShort() & 0xFFFF];
+            in.get(nameBytes);
+            this.name = sanitize(new String(nameBytes, StandardCharsets.UTF_8));
+            if (size < 0 || size > Integer.MAX_VALUE || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE
+                    || chunkCount != (size + chunkSize - 1) / chunkSize || in.remaining() != chunkCount * HASH_SIZE) {
+                throw new IllegalArgumentException("manifest");
+            }
+            this.hashes = new byte[in.remaining()];
+            in.get(hashes);
+            this.bitmapOffset = 4 + manifest.length;
+            this.partFile = partFile;
+            this.stateFile = stateFile;
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+
+        boolean matches(int index, ByteBuffer chunk) {
+            MessageDigest digest = SHA256.get();
+            digest.update(chunk.duplicate());
+            byte[] hash = digest.digest();
+            return Arrays.equals(hash, 0, HASH_SIZE, hashes, index * HASH_SIZE, (index + 1) * HASH_SIZE);
+        }
+
+        boolean isPresent(int index) {
+            return (state.get(bitmapOffset + (index >>> 3)) & 1 << (index & 7)) != 0;
+        }
+
+        void setPresent(int index) {
+            int offset = bitmapOffset + (index >>> 3);
+            state.put(offset, (byte) (state.get(offset) | 1 << (index & 7)));
+        }
+
+        void clearPresent(int index) {
+            int offset = bitmapOffset + (index >>> 3);
+            state.put(offset, (byte) (state.get(offset) & ~(1 << (index & 7))));
+        }
+
+        int nextMissing(int from) {
+            int index = from;
+            while (index < chunkCount && isPresent(index)) {
+                index++;
+            }
+            return index;
+        }
+    }
+}
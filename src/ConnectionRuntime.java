@@ -0,0 +1,193 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Owns every thread and socket the node opens. Tasks run on virtual threads
+// when the JVM has them (looked up reflectively so the code still builds on
+// older JDKs) and on a bounded pool of named daemon threads otherwise.
+// shutdown() closes registered resources first so blocked accept/read calls
+// return, then interrupts and waits for the remaining tasks. Delayed tasks
+// run on a single timer thread and should only hand work off, not block.
+final class ConnectionRuntime implements TaskScheduler {
+    private final ExecutorService executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final boolean virtualThreads;
+    private final Semaphore linkPermits;
+    private final Set<Closeable> resources = ConcurrentHashMap.newKeySet();
+    private final Set<TrackedTask> tasks = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean shutdown;
+
+    public ConnectionRuntime(int maxLinks) {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : newBoundedExecutor(maxLinks * 3 + 2);
+        this.linkPermits = new Semaphore(maxLinks);
+        this.timer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "bluemesh-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean submit(String name, Runnable task) {
+        if (shutdown) {
+            return false;
+        }
+        TrackedTask tracked = new TrackedTask(name, task);
+        tasks.add(tracked);
+        try {
+            executor.execute(tracked);
+            return true;
+        } catch (RejectedExecutionException e) {
+            tasks.remove(tracked);
+            Log.warn("Rejected task %s: runtime is saturated or shut down", name);
+            return false;
+        }
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        if (shutdown) {
+            return;
+        }
+        try {
+            timer.schedule(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Scheduled task failed: %s", e);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down in the meantime
+        }
+    }
+
+    public boolean tryReserveLink() {
+        return !shutdown && linkPermits.tryAcquire();
+    }
+
+    public void releaseLink() {
+        linkPermits.release();
+    }
+
+    public int getAvailableLinks() {
+        return linkPermits.availablePermits();
+    }
+
+    public int getActiveTasks() {
+        return tasks.size();
+    }
+
+    public void register(Closeable resource) {
+        resources.add(resource);
+        if (shutdown) {
+            closeQuietly(resource);
+        }
+    }
+
+    public void unregister(Closeable resource) {
+        resources.remove(resource);
+    }
+
+    public void shutdown(long timeoutMillis) {
+        shutdown = true;
+        for (Closeable resource : resources) {
+            closeQuietly(resource);
+        }
+        resources.clear();
+        timer.shutdownNow();
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                Log.warn("Shutdown timed out with %d tasks still running", tasks.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    public void awaitShutdown() throws InterruptedException {
+        terminated.await();
+    }
+
+    private final class TrackedTask extends FutureTask<Void> {
+        TrackedTask(String name, Runnable task) {
+            super(() -> {
+                Thread thread = Thread.currentThread();
+                String previousName = thread.getName();
+                thread.setName(name);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Task %s failed: %s", name, e);
+                } finally {
+                    thread.setName(previousName);
+                }
+            }, null);
+        }
+
+        @Override
+        protected void done() {
+            tasks.remove(this);
+        }
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "bluemesh-", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newBoundedExecutor(int maxThreads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = task -> {
+            Thread thread = new Thread(task, "bluemesh-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(0, maxThreads, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), threadFactory);
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.Random;
+import java.util.Set;
+
+// Counter-based suppression: wait a random jitter and rebroadcast only if
+// fewer than threshold copies were heard in that time.
+final class CounterStrategy extends DeferredStrategy {
+    private final int threshold;
+
+    public CounterStrategy(int threshold, TaskScheduler scheduler, long jitterMillis, Random random) {
+        super(scheduler, jitterMillis, random);
+        this.threshold = threshold;
+    }
+
+    @Override
+    void decide(MeshRelay relay, byte[] encoded, FrameSink from, Set<FrameSink> senders, int copies) {
+        if (copies >= threshold) {
+            relay.recordSuppressed(relay.countTargets(from));
+            return;
+        }
+        int sent = 0;
+        for (FrameSink link : relay.getLinks()) {
+            if (link == from) {
+                continue;
+            }
+            if (senders.contains(link)) {
+                relay.recordSuppressed(1);
+            } else if (relay.forwardTo(link, encoded)) {
+                sent++;
+            }
+        }
+        relay.recordFanout(sent);
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.Random;
+import java.util.Set;
+
+// Neighbor-coverage forwarding. A link is skipped when its peer already sent
+// a copy or is a neighbor of a peer that did, since that peer forwards to its
+// own neighbors. Waiting a jitter lets more copies, and so more coverage,
+// arrive before deciding.
+final class CoverageStrategy extends DeferredStrategy {
+    private final NeighborTable neighbors;
+
+    public CoverageStrategy(NeighborTable neighbors, TaskScheduler scheduler, long jitterMillis, Random random) {
+        super(scheduler, jitterMillis, random);
+        this.neighbors = neighbors;
+    }
+
+    @Override
+    void decide(MeshRelay relay, byte[] encoded, FrameSink from, Set<FrameSink> senders, int copies) {
+        int sent = 0;
+        for (FrameSink link : relay.getLinks()) {
+            if (link == from) {
+                continue;
+            }
+            if (senders.contains(link) || isCovered(link, senders)) {
+                relay.recordSuppressed(1);
+            } else if (relay.forwardTo(link, encoded)) {
+                sent++;
+            }
+        }
+        relay.recordFanout(sent);
+    }
+
+    private boolean isCovered(FrameSink link, Set<FrameSink> senders) {
+        for (FrameSink sender : senders) {
+            if (neighbors.covers(sender, link)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
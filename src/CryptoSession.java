@@ -0,0 +1,109 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// AES-GCM context for one key. Ciphers are created once per thread and
+// re-initialized only with a fresh nonce, so the per-message path does not
+// look up providers or rebuild the key, and the nonce and AAD buffers are
+// reused. It is not allocation-free: JCE takes the nonce as a new
+// GCMParameterSpec, and JDK 17's GCM init builds fresh GHASH and counter
+// state, about 0.9 KB per call whatever the message size. Going below that
+// would mean hand-rolled GCM. Nonces are a random 4-byte salt plus a
+// 64-bit counter that starts at a random value, which keeps them unique even
+// when several nodes hold the same key.
+// Sealed layout: nonce (12) || ciphertext || tag (16). Associated data is
+// everything about the frame that stays fixed end to end: type (1) ||
+// end-to-end flags (1) || idHigh (8) || idLow (8) || destination (8, 0 for
+// broadcasts). A relay that changes any of them, or replays the ciphertext
+// under another id, makes the tag fail; hops and ttl stay free to change.
+final class CryptoSession {
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+    public static final int OVERHEAD = NONCE_SIZE + TAG_SIZE;
+    static final int AAD_SIZE = 26;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final int salt;
+    private final AtomicLong counter;
+    private final ThreadLocal<CipherState> ciphers = ThreadLocal.withInitial(CipherState::new);
+
+    public CryptoSession(byte[] keyBytes) {
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        this.salt = RANDOM.nextInt();
+        this.counter = new AtomicLong(RANDOM.nextLong());
+    }
+
+    public static int sealedSize(int plaintextLength) {
+        return plaintextLength + OVERHEAD;
+    }
+
+    public static int openedSize(int sealedLength) {
+        return sealedLength - OVERHEAD;
+    }
+
+    public int encrypt(byte type, byte flags, long idHigh, long idLow, long destination, ByteBuffer plaintext,
+            ByteBuffer out) throws GeneralSecurityException {
+        CipherState state = ciphers.get();
+        byte[] nonce = state.nonce;
+        putInt(nonce, 0, salt);
+        putLong(nonce, 4, counter.getAndIncrement());
+        state.cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        state.cipher.updateAAD(state.aad(type, flags, idHigh, idLow, destination));
+        out.put(nonce);
+        return NONCE_SIZE + state.cipher.doFinal(plaintext, out);
+    }
+
+    public int decrypt(byte type, byte flags, long idHigh, long idLow, long destination, ByteBuffer sealed,
+            ByteBuffer out) throws GeneralSecurityException {
+        if (sealed.remaining() < OVERHEAD) {
+            throw new GeneralSecurityException("Ciphertext too short");
+        }
+        CipherState state = ciphers.get();
+        sealed.get(state.nonce);
+        state.cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, state.nonce));
+        state.cipher.updateAAD(state.aad(type, flags, idHigh, idLow, destination));
+        return state.cipher.doFinal(sealed, out);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    private static final class CipherState {
+        final Cipher cipher;
+        final byte[] nonce = new byte[NONCE_SIZE];
+        final byte[] aad = new byte[AAD_SIZE];
+
+        CipherState() {
+            try {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+            }
+        }
+
+        byte[] aad(byte type, byte flags, long idHigh, long idLow, long destination) {
+            aad[0] = type;
+            aad[1] = (byte) (flags & Frame.END_TO_END_FLAGS);
+            putLong(aad, 2, idHigh);
+            putLong(aad, 10, idLow);
+            putLong(aad, 18, destination);
+            return aad;
+        }
+    }
+}
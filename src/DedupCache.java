@@ -0,0 +1,160 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Fixed-size duplicate filter for 128-bit message ids.
+// Ids are spread over independently locked stripes. Each stripe keeps two
+// open-addressing generations of primitive longs; when the current one fills
+// up or half the window has passed it becomes the previous generation and the
+// old previous one is cleared. An id is therefore remembered for at least
+// half the window and at most the full window, and memory never grows.
+// The all-zero id is reserved as the empty slot marker.
+final class DedupCache {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long halfWindowNanos;
+    private final LongSupplier clock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DedupCache(int capacity, long windowMillis) {
+        this(capacity, windowMillis, System::nanoTime);
+    }
+
+    // The clock supplies nanoseconds; the simulator passes its virtual time.
+    DedupCache(int capacity, long windowMillis, LongSupplier clock) {
+        int perGeneration = Math.max(16, capacity / STRIPES / 2);
+        int slots = Integer.highestOneBit(perGeneration * 2 - 1) << 1;
+        this.halfWindowNanos = windowMillis * 1_000_000L / 2;
+        this.clock = clock;
+        long now = clock.getAsLong();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(slots, perGeneration, now);
+        }
+    }
+
+    public boolean markSeen(long idHigh, long idLow) {
+        long hash = mix(idHigh, idLow);
+        boolean added = stripes[(int) (hash >>> 60)].markSeen(idHigh, idLow, (int) hash, clock.getAsLong(), halfWindowNanos);
+        if (added) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return added;
+    }
+
+    public boolean contains(long idHigh, long idLow) {
+        long hash = mix(idHigh, idLow);
+        return stripes[(int) (hash >>> 60)].contains(idHigh, idLow, (int) hash, clock.getAsLong(), halfWindowNanos);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private static long mix(long idHigh, long idLow) {
+        long h = idHigh * 0x9E3779B97F4A7C15L + idLow;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static final class Stripe {
+        private final int mask;
+        private final int limit;
+        private long[] current;
+        private long[] previous;
+        private int currentSize;
+        private int previousSize;
+        private long rotatedAt;
+
+        Stripe(int slots, int limit, long now) {
+            this.mask = slots - 1;
+            this.limit = limit;
+            this.current = new long[slots * 2];
+            this.previous = new long[slots * 2];
+            this.rotatedAt = now;
+        }
+
+        synchronized boolean markSeen(long idHigh, long idLow, int hash, long now, long halfWindowNanos) {
+            expire(now, halfWindowNanos);
+            if (find(previous, idHigh, idLow, hash) >= 0) {
+                return false;
+            }
+            int slot = find(current, idHigh, idLow, hash);
+            if (slot >= 0) {
+                return false;
+            }
+            if (currentSize >= limit) {
+                rotate(now);
+                slot = find(current, idHigh, idLow, hash);
+            }
+            int index = -slot - 1;
+            current[index * 2] = idHigh;
+            current[index * 2 + 1] = idLow;
+            currentSize++;
+            return true;
+        }
+
+        synchronized boolean contains(long idHigh, long idLow, int hash, long now, long halfWindowNanos) {
+            expire(now, halfWindowNanos);
+            return find(current, idHigh, idLow, hash) >= 0 || find(previous, idHigh, idLow, hash) >= 0;
+        }
+
+        synchronized int size() {
+            return currentSize + previousSize;
+        }
+
+        // Returns the slot holding the id, or -(free slot) - 1 when absent.
+        private int find(long[] table, long idHigh, long idLow, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                long high = table[slot * 2];
+                long low = table[slot * 2 + 1];
+                if (high == idHigh && low == idLow) {
+                    return (high | low) == 0 ? -slot - 1 : slot;
+                }
+                if ((high | low) == 0) {
+                    return -slot - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void expire(long now, long halfWindowNanos) {
+            long elapsed = now - rotatedAt;
+            if (elapsed >= halfWindowNanos) {
+                rotate(now);
+                if (elapsed >= halfWindowNanos * 2) {
+                    rotate(now);
+                }
+            }
+        }
+
+        private void rotate(long now) {
+            long[] cleared = previous;
+            Arrays.fill(cleared, 0L);
+            previous = current;
+            previousSize = currentSize;
+            current = cleared;
+            currentSize = 0;
+            rotatedAt = now;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Base for strategies that hold a new frame for a random jitter before
+// deciding, counting the copies heard from other links in the meantime.
+// Links that already delivered a copy are never sent one back.
+abstract class DeferredStrategy implements ForwardingStrategy {
+    private final Map<FrameId, Pending> pending = new ConcurrentHashMap<>();
+    private final TaskScheduler scheduler;
+    private final long jitterMillis;
+    private final Random random;
+
+    DeferredStrategy(TaskScheduler scheduler, long jitterMillis, Random random) {
+        this.scheduler = scheduler;
+        this.jitterMillis = jitterMillis;
+        this.random = random;
+    }
+
+    @Override
+    public void onFirstCopy(MeshRelay relay, byte[] encoded, long idHigh, long idLow, FrameSink from) {
+        FrameId id = new FrameId(idHigh, idLow);
+        Pending entry = new Pending(encoded, from);
+        pending.put(id, entry);
+        long delay = jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0;
+        scheduler.schedule(() -> {
+            pending.remove(id);
+            relay.forwardDeferred(entry.encoded, () -> {
+                synchronized (entry) {
+                    decide(relay, entry.encoded, entry.from, entry.senders, entry.copies);
+                }
+            });
+        }, delay);
+    }
+
+    @Override
+    public boolean isDeferred() {
+        return true;
+    }
+
+    @Override
+    public void onDuplicate(long idHigh, long idLow, FrameSink from) {
+        Pending entry = pending.get(new FrameId(idHigh, idLow));
+        if (entry != null) {
+            synchronized (entry) {
+                entry.copies++;
+                entry.senders.add(from);
+            }
+        }
+    }
+
+    // Called once the jitter has passed; from is the link the first copy came
+    // in on and senders holds every link a copy arrived on, from included.
+    abstract void decide(MeshRelay relay, byte[] encoded, FrameSink from, Set<FrameSink> senders, int copies);
+
+    private static final class Pending {
+        final byte[] encoded;
+        final FrameSink from;
+        final Set<FrameSink> senders = new HashSet<>();
+        int copies = 1;
+
+        Pending(byte[] encoded, FrameSink from) {
+            this.encoded = encoded;
+            this.from = from;
+            senders.add(from);
+        }
+    }
+
+    private static final class FrameId {
+        final long high;
+        final long low;
+
+        FrameId(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof FrameId && ((FrameId) other).high == high && ((FrameId) other).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high * 31 + low);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Hands accepted frames from the reader threads to a single consumer that
+// does the slow work (decryption, printing) off the forwarding path.
+final class DeliveryQueue implements FrameSink {
+    private final ArrayBlockingQueue<byte[]> queue;
+    private final Consumer<Frame> consumer;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public DeliveryQueue(int capacity, Consumer<Frame> consumer) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.consumer = consumer;
+    }
+
+    @Override
+    public boolean enqueue(byte[] frame) {
+        if (queue.offer(frame)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                consumer.accept(Frame.wrap(queue.take()));
+                delivered.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
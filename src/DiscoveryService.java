@@ -0,0 +1,175 @@
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DeviceClass;
+import javax.bluetooth.DiscoveryAgent;
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.LocalDevice;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Finds chat peers. Runs a device inquiry and starts an SDP search for each
+// device as soon as it is found instead of after the inquiry, with at most
+// bluetooth.sd.trans.max searches in flight. Devices still fresh in the
+// directory are reported without a search; resolved URLs are stored there.
+// JSR-82 callbacks only record results; the thread calling discover() issues
+// the searches and does anything that may block.
+final class DiscoveryService implements DiscoveryListener {
+    private static final long POLL_MS = 50;
+
+    private final DiscoveryAgent agent;
+    private final UUID[] serviceUuids;
+    private final ServiceDirectory directory;
+    private final int maxSearches;
+    private final BlockingQueue<RemoteDevice> found = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Integer> finished = new LinkedBlockingQueue<>();
+    private final Map<Integer, String> urls = new ConcurrentHashMap<>();
+    private volatile boolean inquiring;
+
+    public DiscoveryService(LocalDevice local, UUID serviceUuid, ServiceDirectory directory) {
+        this.agent = local.getDiscoveryAgent();
+        this.serviceUuids = new UUID[] {serviceUuid};
+        this.directory = directory;
+        this.maxSearches = parseLimit(LocalDevice.getProperty("bluetooth.sd.trans.max"));
+    }
+
+    public int getMaxSearches() {
+        return maxSearches;
+    }
+
+    // Blocks until the inquiry and every search finished or the timeout
+    // passed, passing each peer to onFound as soon as it is known.
+    public synchronized List<ServiceDirectory.Entry> discover(long timeoutMillis, Consumer<ServiceDirectory.Entry> onFound)
+            throws BluetoothStateException, InterruptedException {
+        found.clear();
+        finished.clear();
+        urls.clear();
+        List<ServiceDirectory.Entry> services = new ArrayList<>();
+        Set<String> addresses = new HashSet<>();
+        List<RemoteDevice> waiting = new ArrayList<>();
+        Map<Integer, RemoteDevice> searching = new HashMap<>();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        inquiring = true;
+        agent.startInquiry(DiscoveryAgent.GIAC, this);
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                Integer transId;
+                while ((transId = finished.poll()) != null) {
+                    RemoteDevice device = searching.remove(transId);
+                    String url = urls.remove(transId);
+                    if (device != null && url != null) {
+                        report(directory.put(device.getBluetoothAddress(), friendlyName(device), url), services, onFound);
+                    }
+                }
+                RemoteDevice device;
+                while ((device = found.poll()) != null) {
+                    if (!addresses.add(device.getBluetoothAddress())) {
+                        continue;
+                    }
+                    ServiceDirectory.Entry cached = directory.lookup(device.getBluetoothAddress());
+                    if (cached != null) {
+                        report(cached, services, onFound);
+                    } else {
+                        waiting.add(device);
+                    }
+                }
+                while (!waiting.isEmpty() && searching.size() < maxSearches) {
+                    device = waiting.get(0);
+                    try {
+                        searching.put(agent.searchServices(null, serviceUuids, device, this), device);
+                        waiting.remove(0);
+                    } catch (BluetoothStateException e) {
+                        // Some stacks refuse SDP during an inquiry; retry once it is over
+                        if (!inquiring && searching.isEmpty()) {
+                            Log.warn("Service search on %s failed: %s", device.getBluetoothAddress(), e.getMessage());
+                            waiting.remove(0);
+                        }
+                        break;
+                    }
+                }
+                if (!inquiring && found.isEmpty() && waiting.isEmpty() && searching.isEmpty()) {
+                    break;
+                }
+                transId = finished.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (transId != null) {
+                    finished.add(transId);
+                }
+            }
+        } finally {
+            if (inquiring) {
+                agent.cancelInquiry(this);
+                inquiring = false;
+            }
+            for (Integer id : searching.keySet()) {
+                agent.cancelServiceSearch(id);
+            }
+        }
+        return services;
+    }
+
+    private static void report(ServiceDirectory.Entry entry, List<ServiceDirectory.Entry> services,
+            Consumer<ServiceDirectory.Entry> onFound) {
+        services.add(entry);
+        if (onFound != null) {
+            onFound.accept(entry);
+        }
+    }
+
+    @Override
+    public void deviceDiscovered(RemoteDevice btDevice, DeviceClass cod) {
+        found.add(btDevice);
+    }
+
+    @Override
+    public void inquiryCompleted(int discType) {
+        inquiring = false;
+    }
+
+    @Override
+    public void servicesDiscovered(int transID, ServiceRecord[] servRecord) {
+        for (ServiceRecord record : servRecord) {
+            String url = record.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
+            if (url != null) {
+                urls.put(transID, url);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void serviceSearchCompleted(int transID, int respCode) {
+        finished.add(transID);
+    }
+
+    private static String friendlyName(RemoteDevice device) {
+        try {
+            String name = device.getFriendlyName(false);
+            if (name != null && !name.isEmpty()) {
+                return name;
+            }
+        } catch (IOException e) {
+            // Fall back to the address
+        }
+        return device.getBluetoothAddress();
+    }
+
+    private static int parseLimit(String value) {
+        try {
+            return value != null ? Math.max(1, Integer.parseInt(value.trim())) : 1;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+// Blind flooding: every new frame goes to every link except the one it came in on.
+final class FloodStrategy implements ForwardingStrategy {
+    @Override
+    public void onFirstCopy(MeshRelay relay, byte[] encoded, long idHigh, long idLow, FrameSink from) {
+        relay.forward(encoded, from);
+    }
+}
@@ -0,0 +1,21 @@
+import java.util.Random;
+
+enum ForwardingMode {
+    FLOOD,
+    GOSSIP,
+    COUNTER,
+    COVERAGE;
+
+    public ForwardingStrategy create(Random random, TaskScheduler scheduler, NeighborTable neighbors) {
+        switch (this) {
+            case GOSSIP:
+                return new GossipStrategy(MeshConfig.GOSSIP_PROBABILITY, MeshConfig.GOSSIP_ALWAYS_HOPS, random);
+            case COUNTER:
+                return new CounterStrategy(MeshConfig.COUNTER_THRESHOLD, scheduler, MeshConfig.FORWARD_JITTER_MS, random);
+            case COVERAGE:
+                return new CoverageStrategy(neighbors, scheduler, MeshConfig.FORWARD_JITTER_MS, random);
+            default:
+                return new FloodStrategy();
+        }
+    }
+}
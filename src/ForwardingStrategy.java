@@ -0,0 +1,16 @@
+// Decides which links a newly seen frame goes out on. MeshRelay has already
+// dropped duplicates, bumped the hop count and checked the TTL before a
+// strategy sees the frame.
+interface ForwardingStrategy {
+    void onFirstCopy(MeshRelay relay, byte[] encoded, long idHigh, long idLow, FrameSink from);
+
+    // True if onFirstCopy only schedules the decision; the strategy then
+    // fans out through MeshRelay.forwardDeferred, which archives the frame.
+    default boolean isDeferred() {
+        return false;
+    }
+
+    // Another copy of an already seen frame arrived on the given link.
+    default void onDuplicate(long idHigh, long idLow, FrameSink from) {
+    }
+}
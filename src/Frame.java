@@ -0,0 +1,131 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Wire layout (big-endian):
+//   0  version   1 byte
+//   1  type      1 byte
+//   2  flags     1 byte
+//   3  hops      1 byte   (links traversed so far)
+//   4  ttl       1 byte   (links the frame may traverse in total)
+//   5  idHigh    8 bytes
+//  13  idLow     8 bytes
+//  21  length    4 bytes  (payload length)
+//  25  payload   length bytes
+// The header and payload share one backing array so relays can forward the
+// received bytes as-is instead of re-encoding them.
+final class Frame {
+    public static final byte VERSION = 2;
+    public static final int HEADER_SIZE = 25;
+    public static final int MAX_PAYLOAD = 1 << 20;
+
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_NEIGHBORS = 2;
+    public static final byte TYPE_ROUTES = 3;
+    public static final byte TYPE_DIRECT = 4;
+    public static final byte TYPE_SUMMARY = 5;
+    public static final byte TYPE_BULK = 6;
+
+    public static final byte FLAG_COMPRESSED = 0x01;
+    // Flags only the origin sets; they are authenticated with the payload.
+    public static final byte END_TO_END_FLAGS = FLAG_COMPRESSED;
+
+    static final int OFFSET_VERSION = 0;
+    static final int OFFSET_TYPE = 1;
+    static final int OFFSET_FLAGS = 2;
+    static final int OFFSET_HOPS = 3;
+    static final int OFFSET_TTL = 4;
+    static final int OFFSET_ID_HIGH = 5;
+    static final int OFFSET_ID_LOW = 13;
+    static final int OFFSET_LENGTH = 21;
+
+    private byte[] buffer;
+    private ByteBuffer view;
+
+    public Frame() {
+        this(512);
+    }
+
+    public Frame(int payloadCapacity) {
+        buffer = new byte[HEADER_SIZE + payloadCapacity];
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    private Frame(byte[] encoded) {
+        buffer = encoded;
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    public static Frame wrap(byte[] encoded) {
+        return new Frame(encoded);
+    }
+
+    public byte getVersion() {
+        return buffer[OFFSET_VERSION];
+    }
+
+    public byte getType() {
+        return buffer[OFFSET_TYPE];
+    }
+
+    public byte getFlags() {
+        return buffer[OFFSET_FLAGS];
+    }
+
+    public int getHops() {
+        return buffer[OFFSET_HOPS] & 0xFF;
+    }
+
+    public int getTtl() {
+        return buffer[OFFSET_TTL] & 0xFF;
+    }
+
+    public long getIdHigh() {
+        return view.getLong(OFFSET_ID_HIGH);
+    }
+
+    public long getIdLow() {
+        return view.getLong(OFFSET_ID_LOW);
+    }
+
+    public int getPayloadLength() {
+        return view.getInt(OFFSET_LENGTH);
+    }
+
+    public int getPayloadOffset() {
+        return HEADER_SIZE;
+    }
+
+    public int getEncodedLength() {
+        return HEADER_SIZE + getPayloadLength();
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public ByteBuffer payload() {
+        ByteBuffer payload = view.duplicate();
+        payload.limit(HEADER_SIZE + getPayloadLength()).position(HEADER_SIZE);
+        return payload.slice();
+    }
+
+    public byte[] copyEncoded() {
+        return Arrays.copyOf(buffer, getEncodedLength());
+    }
+
+    public String getIdString() {
+        return idToString(getIdHigh(), getIdLow());
+    }
+
+    void ensurePayloadCapacity(int payloadLength) {
+        if (buffer.length < HEADER_SIZE + payloadLength) {
+            int capacity = Math.max(buffer.length * 2, HEADER_SIZE + payloadLength);
+            buffer = Arrays.copyOf(buffer, Math.min(capacity, HEADER_SIZE + MAX_PAYLOAD));
+            view = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    public static String idToString(long idHigh, long idLow) {
+        return String.format("%016x%016x", idHigh, idLow);
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+final class FrameCodec {
+    private FrameCodec() {}
+
+    public static void writeHeader(ByteBuffer dst, byte type, byte flags, int hops, int ttl, long idHigh, long idLow,
+            int payloadLength) {
+        dst.put(Frame.VERSION);
+        dst.put(type);
+        dst.put(flags);
+        dst.put((byte) hops);
+        dst.put((byte) ttl);
+        dst.putLong(idHigh);
+        dst.putLong(idLow);
+        dst.putInt(payloadLength);
+    }
+
+    public static void encode(ByteBuffer dst, byte type, byte flags, int ttl, long idHigh, long idLow, ByteBuffer payload) {
+        writeHeader(dst, type, flags, 0, ttl, idHigh, idLow, payload.remaining());
+        dst.put(payload);
+    }
+
+    public static byte[] encode(byte type, byte flags, int ttl, long idHigh, long idLow, byte[] payload, int offset, int length) {
+        byte[] encoded = new byte[Frame.HEADER_SIZE + length];
+        writeHeader(ByteBuffer.wrap(encoded), type, flags, 0, ttl, idHigh, idLow, length);
+        System.arraycopy(payload, offset, encoded, Frame.HEADER_SIZE, length);
+        return encoded;
+    }
+
+    public static void readFrame(DataInputStream in, Frame frame) throws IOException {
+        byte[] buffer = frame.getBuffer();
+        in.readFully(buffer, 0, Frame.HEADER_SIZE);
+        int length = validateHeader(buffer, 0);
+        frame.ensurePayloadCapacity(length);
+        in.readFully(frame.getBuffer(), Frame.HEADER_SIZE, length);
+    }
+
+    public static boolean decode(ByteBuffer src, Frame frame) throws ProtocolException {
+        if (src.remaining() < Frame.HEADER_SIZE) {
+            return false;
+        }
+        int start = src.position();
+        int length = src.getInt(start + Frame.OFFSET_LENGTH);
+        checkHeader(src.get(start + Frame.OFFSET_VERSION), length);
+        if (src.remaining() < Frame.HEADER_SIZE + length) {
+            return false;
+        }
+        frame.ensurePayloadCapacity(length);
+        src.get(frame.getBuffer(), 0, Frame.HEADER_SIZE + length);
+        return true;
+    }
+
+    public static void setHops(byte[] encoded, int hops) {
+        encoded[Frame.OFFSET_HOPS] = (byte) Math.min(hops, 0xFF);
+    }
+
+    private static int validateHeader(byte[] buffer, int offset) throws ProtocolException {
+        int i = offset + Frame.OFFSET_LENGTH;
+        int length = (buffer[i] & 0xFF) << 24 | (buffer[i + 1] & 0xFF) << 16 | (buffer[i + 2] & 0xFF) << 8 | (buffer[i + 3] & 0xFF);
+        checkHeader(buffer[offset + Frame.OFFSET_VERSION], length);
+        return length;
+    }
+
+    private static void checkHeader(byte version, int length) throws ProtocolException {
+        if (version != Frame.VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+        if (length < 0 || length > Frame.MAX_PAYLOAD) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+    }
+}
@@ -0,0 +1,3 @@
+interface FrameSink {
+    boolean enqueue(byte[] frame);
+}
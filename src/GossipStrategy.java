@@ -0,0 +1,26 @@
+import java.util.Random;
+
+// Probabilistic gossip (GOSSIP1(p, k)): frames within the first k hops of the
+// origin are always forwarded so a message cannot die out right at the start,
+// after that each node rebroadcasts with probability p.
+final class GossipStrategy implements ForwardingStrategy {
+    private final double probability;
+    private final int alwaysForwardHops;
+    private final Random random;
+
+    public GossipStrategy(double probability, int alwaysForwardHops, Random random) {
+        this.probability = probability;
+        this.alwaysForwardHops = alwaysForwardHops;
+        this.random = random;
+    }
+
+    @Override
+    public void onFirstCopy(MeshRelay relay, byte[] encoded, long idHigh, long idLow, FrameSink from) {
+        int hops = encoded[Frame.OFFSET_HOPS] & 0xFF;
+        if (hops <= alwaysForwardHops || random.nextDouble() < probability) {
+            relay.forward(encoded, from);
+        } else {
+            relay.recordSuppressed(relay.countTargets(from));
+        }
+    }
+}
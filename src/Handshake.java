@@ -0,0 +1,247 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Link handshake with a fixed-size binary hello. The dialing end sends its
+// hello first; the accepting end reads it before answering, so it knows the
+// peer's node id and can pick that node's ticket. Hello layout (big-endian):
+//   0  version       1 byte
+//   1  capabilities  1 byte
+//   2  mode          1 byte  (MODE_FULL or MODE_RESUME)
+//   3  nodeId        8 bytes
+//  11  nonce        16 bytes
+//  27  body         32 bytes
+// A full hello carries a raw ephemeral X25519 public key as its body. A resume
+// hello carries a 16-byte ticket id and a 16-byte HMAC binder proving the
+// sender holds the ticket's PSK.
+// If both ends offer the same ticket the link is keyed from the PSK and the
+// two nonces: one round trip, no asymmetric crypto. Otherwise every end that
+// offered a ticket follows up with a full hello and both run X25519.
+// Directional link keys are expanded with HKDF, salted with a hash of the two
+// hellos ordered by node id, and every session issues the next ticket.
+// The mesh auth key (derived from the mesh secret) is mixed into the key
+// material, and each end then sends a FINISHED_SIZE proof expanded from it
+// and checks the peer's. The hellos carry the node ids, so a peer without
+// the mesh secret can neither finish a link nor claim another node's id.
+final class Handshake {
+    public static final byte VERSION = 3;
+    public static final int HELLO_SIZE = 59;
+    static final byte MODE_FULL = 0;
+    static final byte MODE_RESUME = 1;
+    static final int NONCE_SIZE = 16;
+    static final int KEY_SIZE = 32;
+    static final int TICKET_ID_SIZE = 16;
+    static final int BINDER_SIZE = 16;
+    static final int LINK_KEY_SIZE = 16;
+    static final int FINISHED_SIZE = 16;
+    private static final int OFFSET_MODE = 2;
+    private static final int OFFSET_BODY = HELLO_SIZE - KEY_SIZE;
+
+    // DER prefix of an X.509 SubjectPublicKeyInfo wrapping a raw X25519 key.
+    private static final byte[] X25519_SPKI_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+    };
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long localNodeId;
+    private final int localCapabilities;
+    private final byte[] meshAuthKey;
+    private final SessionTicketCache tickets;
+
+    public Handshake(long localNodeId, int localCapabilities, byte[] meshAuthKey, SessionTicketCache tickets) {
+        this.localNodeId = localNodeId;
+        this.localCapabilities = localCapabilities;
+        this.meshAuthKey = meshAuthKey;
+        this.tickets = tickets;
+    }
+
+    public SessionTicketCache getTickets() {
+        return tickets;
+    }
+
+    public LinkSession perform(String remoteAddress, boolean outbound, DataInputStream in, DataOutputStream out)
+            throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        String dialedAddress = outbound ? remoteAddress : null;
+        SessionTicketCache.Ticket ticket = null;
+        byte[] remoteHello = null;
+        if (outbound) {
+            ticket = tickets != null ? tickets.getDialed(remoteAddress) : null;
+        } else {
+            remoteHello = readHello(in);
+            // Only answer in kind when the dialer offers the ticket we hold.
+            if (tickets != null && remoteHello[OFFSET_MODE] == MODE_RESUME) {
+                ticket = tickets.get(ByteBuffer.wrap(remoteHello).getLong(3));
+                if (ticket != null && !MessageDigest.isEqual(ticket.id,
+                        Arrays.copyOfRange(remoteHello, OFFSET_BODY, OFFSET_BODY + TICKET_ID_SIZE))) {
+                    tickets.recordFallback();
+                    tickets.remove(ticket.remoteNodeId);
+                    ticket = null;
+                }
+            }
+        }
+        KeyPair keyPair = null;
+        byte[] localHello;
+        if (ticket != null) {
+            localHello = resumeHello(ticket);
+        } else {
+            keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+            localHello = fullHello(keyPair);
+        }
+        out.write(localHello);
+        out.flush();
+        if (remoteHello == null) {
+            remoteHello = readHello(in);
+        }
+        long remoteNodeId = ByteBuffer.wrap(remoteHello).getLong(3);
+        if (remoteNodeId == localNodeId) {
+            throw new ProtocolException("Peer reported our own node id");
+        }
+
+        if (ticket != null && remoteHello[OFFSET_MODE] == MODE_RESUME
+                && MessageDigest.isEqual(ticket.id, Arrays.copyOfRange(remoteHello, OFFSET_BODY, OFFSET_BODY + TICKET_ID_SIZE))) {
+            if (!MessageDigest.isEqual(binder(ticket.psk, remoteHello), Arrays.copyOfRange(remoteHello, OFFSET_BODY + TICKET_ID_SIZE, HELLO_SIZE))) {
+                tickets.remove(remoteNodeId);
+                throw new GeneralSecurityException("Resumption binder mismatch");
+            }
+            return deriveSession(dialedAddress, localHello, remoteHello, ticket.psk, true, start, in, out);
+        }
+
+        if (ticket != null) {
+            tickets.recordFallback();
+            tickets.remove(ticket.remoteNodeId);
+            keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+            localHello = fullHello(keyPair);
+            out.write(localHello);
+            out.flush();
+        }
+        if (remoteHello[OFFSET_MODE] == MODE_RESUME) {
+            remoteHello = readHello(in);
+            if (remoteHello[OFFSET_MODE] != MODE_FULL || ByteBuffer.wrap(remoteHello).getLong(3) != remoteNodeId) {
+                throw new ProtocolException("Expected a full hello after failed resumption");
+            }
+        }
+
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(keyPair.getPrivate());
+        agreement.doPhase(publicKeyFromRaw(Arrays.copyOfRange(remoteHello, OFFSET_BODY, HELLO_SIZE)), true);
+        byte[] sharedSecret = agreement.generateSecret();
+        try {
+            return deriveSession(dialedAddress, localHello, remoteHello, sharedSecret, false, start, in, out);
+        } finally {
+            Arrays.fill(sharedSecret, (byte) 0);
+        }
+    }
+
+    private LinkSession deriveSession(String dialedAddress, byte[] localHello, byte[] remoteHello, byte[] secret,
+            boolean resumed, long start, DataInputStream in, DataOutputStream out)
+            throws IOException, GeneralSecurityException {
+        ByteBuffer remote = ByteBuffer.wrap(remoteHello);
+        int remoteCapabilities = remote.get(1) & 0xFF;
+        long remoteNodeId = remote.getLong(3);
+        boolean localIsLow = Long.compareUnsigned(localNodeId, remoteNodeId) < 0;
+        MessageDigest transcript = MessageDigest.getInstance("SHA-256");
+        transcript.update(localIsLow ? localHello : remoteHello);
+        transcript.update(localIsLow ? remoteHello : localHello);
+        byte[] keyMaterial = Arrays.copyOf(secret, secret.length + meshAuthKey.length);
+        System.arraycopy(meshAuthKey, 0, keyMaterial, secret.length, meshAuthKey.length);
+        byte[] prk = Hkdf.extract(transcript.digest(), keyMaterial);
+        Arrays.fill(keyMaterial, (byte) 0);
+        byte[] lowToHigh = Hkdf.expand(prk, "bluemesh link low->high", LINK_KEY_SIZE);
+        byte[] highToLow = Hkdf.expand(prk, "bluemesh link high->low", LINK_KEY_SIZE);
+        byte[] lowFinished = Hkdf.expand(prk, "bluemesh finished low", FINISHED_SIZE);
+        byte[] highFinished = Hkdf.expand(prk, "bluemesh finished high", FINISHED_SIZE);
+        byte[] resumption = Hkdf.expand(prk, "bluemesh resumption", KEY_SIZE);
+        Arrays.fill(prk, (byte) 0);
+        // Both ends write before reading, so this costs the dialer no extra
+        // round trip: the acceptor's proof follows its hello.
+        out.write(localIsLow ? lowFinished : highFinished);
+        out.flush();
+        byte[] remoteFinished = new byte[FINISHED_SIZE];
+        in.readFully(remoteFinished);
+        if (!MessageDigest.isEqual(remoteFinished, localIsLow ? highFinished : lowFinished)) {
+            if (resumed && tickets != null) {
+                tickets.remove(remoteNodeId);
+            }
+            throw new GeneralSecurityException("Peer did not prove the mesh secret");
+        }
+        if (tickets != null) {
+            tickets.put(new SessionTicketCache.Ticket(
+                    Hkdf.expand(resumption, "bluemesh ticket id", TICKET_ID_SIZE),
+                    Hkdf.expand(resumption, "bluemesh ticket psk", KEY_SIZE),
+                    remoteNodeId), dialedAddress);
+        }
+        return new LinkSession(remoteNodeId, remoteCapabilities,
+                localIsLow ? lowToHigh : highToLow,
+                localIsLow ? highToLow : lowToHigh,
+                resumption, resumed, System.nanoTime() - start);
+    }
+
+    private byte[] fullHello(KeyPair keyPair) {
+        byte[] hello = new byte[HELLO_SIZE];
+        header(hello, MODE_FULL).put(rawPublicKey(keyPair.getPublic()));
+        return hello;
+    }
+
+    private byte[] resumeHello(SessionTicketCache.Ticket ticket) throws GeneralSecurityException {
+        byte[] hello = new byte[HELLO_SIZE];
+        header(hello, MODE_RESUME).put(ticket.id);
+        System.arraycopy(binder(ticket.psk, hello), 0, hello, OFFSET_BODY + TICKET_ID_SIZE, BINDER_SIZE);
+        return hello;
+    }
+
+    private ByteBuffer header(byte[] hello, byte mode) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        return ByteBuffer.wrap(hello)
+                .put(VERSION)
+                .put((byte) localCapabilities)
+                .put(mode)
+                .putLong(localNodeId)
+                .put(nonce);
+    }
+
+    private static byte[] binder(byte[] psk, byte[] hello) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(psk, "HmacSHA256"));
+        mac.update(hello, 0, OFFSET_BODY + TICKET_ID_SIZE);
+        return Arrays.copyOf(mac.doFinal(), BINDER_SIZE);
+    }
+
+    private static byte[] readHello(DataInputStream in) throws IOException {
+        byte[] hello = new byte[HELLO_SIZE];
+        in.readFully(hello);
+        if (hello[0] != VERSION) {
+            throw new ProtocolException("Unsupported handshake version " + hello[0]);
+        }
+        if (hello[OFFSET_MODE] != MODE_FULL && hello[OFFSET_MODE] != MODE_RESUME) {
+            throw new ProtocolException("Unknown handshake mode " + hello[OFFSET_MODE]);
+        }
+        return hello;
+    }
+
+    static byte[] rawPublicKey(PublicKey key) {
+        byte[] encoded = key.getEncoded();
+        return Arrays.copyOfRange(encoded, encoded.length - KEY_SIZE, encoded.length);
+    }
+
+    static PublicKey publicKeyFromRaw(byte[] raw) throws GeneralSecurityException {
+        byte[] encoded = Arrays.copyOf(X25519_SPKI_PREFIX, X25519_SPKI_PREFIX.length + KEY_SIZE);
+        System.arraycopy(raw, 0, encoded, X25519_SPKI_PREFIX.length, KEY_SIZE);
+        return KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+}
@@ -0,0 +1,44 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// RFC 5869 HKDF with HMAC-SHA256.
+final class Hkdf {
+    private static final String HMAC = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {}
+
+    public static byte[] extract(byte[] salt, byte[] inputKeyMaterial) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt, HMAC));
+        return mac.doFinal(inputKeyMaterial);
+    }
+
+    public static byte[] expand(byte[] pseudoRandomKey, String info, int length) throws GeneralSecurityException {
+        if (length > 255 * HASH_LENGTH) {
+            throw new GeneralSecurityException("HKDF output too long");
+        }
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(pseudoRandomKey, HMAC));
+        byte[] infoBytes = info.getBytes(StandardCharsets.UTF_8);
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (int counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(infoBytes);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int chunk = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, chunk);
+            offset += chunk;
+        }
+        return output;
+    }
+
+    public static byte[] derive(byte[] salt, byte[] inputKeyMaterial, String info, int length) throws GeneralSecurityException {
+        return expand(extract(salt, inputKeyMaterial), info, length);
+    }
+}
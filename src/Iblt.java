@@ -0,0 +1,131 @@
+import java.nio.ByteBuffer;
+
+// Invertible Bloom lookup table over 128-bit message ids, used to reconcile
+// two outboxes. Every id lands in one cell of each of HASHES equal partitions;
+// a cell keeps a count and the XOR of the ids and of their checksums.
+// Subtracting the peer's table cancels every id both sides hold, so the
+// table only has to be sized for the difference, not for the sets. What is
+// left is decoded by repeatedly peeling "pure" cells (count +-1 and a
+// matching checksum).
+// Wire layout per cell: count (4) || idHigh (8) || idLow (8) || checksum (8).
+final class Iblt {
+    public static final int HASHES = 3;
+    public static final int CELL_SIZE = 28;
+
+    private final int partition;
+    private final int[] counts;
+    private final long[] highs;
+    private final long[] lows;
+    private final long[] checks;
+
+    interface IdVisitor {
+        void visit(long idHigh, long idLow);
+    }
+
+    public Iblt(int cells) {
+        this.partition = Math.max(1, (cells + HASHES - 1) / HASHES);
+        int size = partition * HASHES;
+        this.counts = new int[size];
+        this.highs = new long[size];
+        this.lows = new long[size];
+        this.checks = new long[size];
+    }
+
+    public int getCells() {
+        return counts.length;
+    }
+
+    public void add(long idHigh, long idLow) {
+        update(idHigh, idLow, checksum(idHigh, idLow), 1);
+    }
+
+    public void subtract(Iblt other) {
+        if (other.counts.length != counts.length) {
+            throw new IllegalArgumentException("Table sizes differ: " + counts.length + " and " + other.counts.length);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] -= other.counts[i];
+            highs[i] ^= other.highs[i];
+            lows[i] ^= other.lows[i];
+            checks[i] ^= other.checks[i];
+        }
+    }
+
+    // Peels the difference left by subtract(): ids only this side added go to
+    // local, ids only the other side added go to remote. Destroys the table.
+    // Returns false if some cells could not be peeled, i.e. the table was
+    // too small for the difference and the lists are incomplete.
+    public boolean decode(IdVisitor local, IdVisitor remote) {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int i = 0; i < counts.length; i++) {
+                int count = counts[i];
+                if ((count == 1 || count == -1) && checks[i] == checksum(highs[i], lows[i])) {
+                    long idHigh = highs[i];
+                    long idLow = lows[i];
+                    if (count == 1) {
+                        local.visit(idHigh, idLow);
+                    } else {
+                        remote.visit(idHigh, idLow);
+                    }
+                    update(idHigh, idLow, checks[i], -count);
+                    progress = true;
+                }
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0 || highs[i] != 0 || lows[i] != 0 || checks[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void write(ByteBuffer out) {
+        for (int i = 0; i < counts.length; i++) {
+            out.putInt(counts[i]).putLong(highs[i]).putLong(lows[i]).putLong(checks[i]);
+        }
+    }
+
+    // The cell count comes off the wire, so it is checked against the limit
+    // and the bytes actually present before anything is allocated. maxCells is
+    // rounded up the same way the constructor rounds a requested size.
+    public static Iblt read(ByteBuffer in, int cells, int maxCells) {
+        long limit = ((long) maxCells + HASHES - 1) / HASHES * HASHES;
+        if (cells <= 0 || cells > limit || cells % HASHES != 0 || (long) cells * CELL_SIZE > in.remaining()) {
+            throw new IllegalArgumentException("Malformed table of " + cells + " cells");
+        }
+        Iblt table = new Iblt(cells);
+        for (int i = 0; i < cells; i++) {
+            table.counts[i] = in.getInt();
+            table.highs[i] = in.getLong();
+            table.lows[i] = in.getLong();
+            table.checks[i] = in.getLong();
+        }
+        return table;
+    }
+
+    // Independent of the cell hashes, so a cell holding several ids is
+    // recognised as impure.
+    public static long checksum(long idHigh, long idLow) {
+        return mix(mix(idHigh ^ 0x9E3779B97F4A7C15L) + idLow);
+    }
+
+    private void update(long idHigh, long idLow, long check, int delta) {
+        long hash = mix(idHigh * 31 + idLow);
+        for (int k = 0; k < HASHES; k++) {
+            int cell = k * partition + (int) Long.remainderUnsigned(mix(hash + k), partition);
+            counts[cell] += delta;
+            highs[cell] ^= idHigh;
+            lows[cell] ^= idLow;
+            checks[cell] ^= check;
+        }
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,58 +1,89 @@
 import javax.bluetooth.*;
-import javax.microedition.io.*;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
-import javax.crypto.*;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
 import java.security.*;
-import java.util.Base64;
 
 public class ImprovedBluetoothChatApp {
     private static final javax.bluetooth.UUID APP_UUID = new javax.bluetooth.UUID("fa87c0d0afac11de8a39800c29f3c000", false);
     private static final String APP_NAME = "ImprovedBluetoothChatApp";
     private static LocalDevice localDevice;
-    private static DiscoveryAgent discoveryAgent;
-    private static StreamConnectionNotifier notifier;
-    private static final List<RemoteDevice> connectedDevices = new ArrayList<>();
-    private static final Map<RemoteDevice, DataOutputStream> outputStreams = new HashMap<>();
-    private static final Map<RemoteDevice, DataInputStream> inputStreams = new HashMap<>();
-    private static final Set<String> seenMessages = new HashSet<>();
-    private static KeyPair dhKeyPair;
-    private static SecretKeySpec aesKey;
-    private static volatile boolean running = true;
+    private static DiscoveryService discovery;
+    private static ServiceDirectory directory;
+    private static MeshNode node;
+    private static AutoMesh autoMesh;
+    private static long lastDiscovery;
 
     public static void main(String[] args) {
+        if (MeshConfig.MESH_SECRET == null || MeshConfig.MESH_SECRET.isEmpty()) {
+            System.err.println("Set the shared mesh secret with -Dbluemesh.meshSecret=<secret>");
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
-        System.out.println("Improved Bluetooth Chat App");
-        System.out.println("1. Start Server");
-        System.out.println("2. Start Client");
-        System.out.print("Choose an option (1 or 2): ");
-        int choice = scanner.nextInt();
-        scanner.nextLine(); // Consume newline
+        int choice = MeshConfig.AUTO ? 4 : 3;
+        if (!MeshConfig.RELAY_ONLY && !MeshConfig.AUTO) {
+            System.out.println("Improved Bluetooth Chat App");
+            System.out.println("1. Start Server");
+            System.out.println("2. Start Client");
+            System.out.println("3. Start Relay (forward only)");
+            System.out.println("4. Start Auto Mesh (listen and connect to peers)");
+            System.out.print("Choose an option (1-4): ");
+            choice = scanner.nextInt();
+            scanner.nextLine(); // Consume newline
+        }
 
         try {
-            localDevice = LocalDevice.getLocalDevice();
-            discoveryAgent = localDevice.getDiscoveryAgent();
-            System.out.println("Local Device: " + getFriendlyNameSafe(localDevice));
-            initializeDiffieHellman();
-
-            if (choice == 1) {
-                startServer();
+            boolean bluetooth = "bluetooth".equalsIgnoreCase(MeshConfig.TRANSPORT);
+            Transport transport;
+            long nodeId;
+            if (bluetooth) {
+                localDevice = LocalDevice.getLocalDevice();
+                directory = new ServiceDirectory(Paths.get(MeshConfig.DIRECTORY_FILE), MeshConfig.DIRECTORY_TTL_MS);
+                discovery = new DiscoveryService(localDevice, APP_UUID, directory);
+                System.out.println("Local Device: " + getFriendlyNameSafe(localDevice));
+                nodeId = deriveNodeId(localDevice);
+                transport = new BluetoothTransport(APP_UUID, APP_NAME);
+            } else if ("tcp".equalsIgnoreCase(MeshConfig.TRANSPORT)) {
+                nodeId = MeshConfig.NODE_ID != 0 ? MeshConfig.NODE_ID : ThreadLocalRandom.current().nextLong() | 1L;
+                transport = new TcpTransport(MeshConfig.TCP_HOST, MeshConfig.TCP_PORT);
+            } else {
+                System.err.println("Unknown transport " + MeshConfig.TRANSPORT + " (expected bluetooth or tcp)");
+                return;
+            }
+            OutboxLog outbox = MeshConfig.OUTBOX ? new OutboxLog(Paths.get(MeshConfig.OUTBOX_DIR, Long.toHexString(nodeId)),
+                    MeshConfig.OUTBOX_SEGMENT_BYTES, MeshConfig.OUTBOX_TTL_MS, MeshConfig.OUTBOX_MAX_SEGMENTS) : null;
+            boolean relayOnly = choice == 3 || MeshConfig.RELAY_ONLY;
+            node = new MeshNode(nodeId, transport, relayOnly ? null : CONSOLE_LISTENER, outbox);
+            System.out.println("Node id: " + Long.toHexString(nodeId));
+            exposeMetrics(nodeId);
+
+            boolean started = false;
+            if (choice == 1 || choice == 3) {
+                started = node.listen();
+                if (started) System.out.println("Server started on " + node.getListenAddress() + ". Waiting for connections...");
             } else if (choice == 2) {
-                startClient(scanner);
+                started = bluetooth ? startClient(scanner) : startTcpClient(scanner);
+            } else if (choice == 4) {
+                started = node.listen() && startAutoMesh(bluetooth);
             } else {
                 System.out.println("Invalid option.");
             }
-        } catch (BluetoothStateException | NoSuchAlgorithmException | InvalidKeyException e) {
+            if (!started) {
+                node.shutdown();
+            } else if (node.getRelay().isRelayOnly()) {
+                System.out.println("Relaying only; press Ctrl+C to stop.");
+                Runtime.getRuntime().addShutdownHook(new Thread(node::shutdown));
+                node.getRuntime().awaitShutdown();
+            } else {
+                startUserInput(scanner);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | GeneralSecurityException e) {
             System.err.println("Initialization failed: " + e.getMessage());
         } finally {
             scanner.close();
@@ -67,337 +98,241 @@ public class ImprovedBluetoothChatApp {
         }
     }
 
-    private static String getFriendlyNameSafe(RemoteDevice device) {
-        try {
-            return device.getFriendlyName(false);
-        } catch (IOException e) {
-            return "Unknown Device";
-        }
+    private static long deriveNodeId(LocalDevice device) {
+        long address = addressToNodeId(device.getBluetoothAddress());
+        return address != 0 ? address : ThreadLocalRandom.current().nextLong() | 1L;
     }
 
-    private static void initializeDiffieHellman() throws NoSuchAlgorithmException, InvalidKeyException {
-        KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("DH");
-        keyPairGen.initialize(2048);
-        dhKeyPair = keyPairGen.generateKeyPair();
-    }
-
-    private static void startServer() {
+    // Bluetooth nodes use their adapter address as node id; 0 if it is not one.
+    private static long addressToNodeId(String address) {
         try {
-            String url = "btspp://localhost:" + APP_UUID + ";name=" + APP_NAME;
-            notifier = (StreamConnectionNotifier) Connector.open(url);
-            System.out.println("Server started. Waiting for connections...");
-
-            new Thread(() -> {
-                while (running) {
-                    try {
-                        StreamConnection connection = notifier.acceptAndOpen();
-                        RemoteDevice device = RemoteDevice.getRemoteDevice(connection);
-                        System.out.println("Client connected: " + getFriendlyNameSafe(device));
-                        handleNewConnection(connection, device);
-                    } catch (IOException e) {
-                        if (running) System.err.println("Server connection error: " + e.getMessage());
-                    }
-                }
-            }).start();
-        } catch (IOException e) {
-            System.err.println("Server setup failed: " + e.getMessage());
+            return Long.parseLong(address, 16);
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
-    private static void startClient(Scanner scanner) {
-        try {
-            System.out.println("Starting device discovery...");
-            List<RemoteDevice> devices = new ArrayList<>();
-            DeviceDiscoveryListener listener = new DeviceDiscoveryListener(devices);
-            discoveryAgent.startInquiry(DiscoveryAgent.GIAC, listener);
-            synchronized (listener) {
-                listener.wait();
-            }
+    private static boolean startAutoMesh(boolean bluetooth) {
+        autoMesh = new AutoMesh(node, bluetooth ? ImprovedBluetoothChatApp::bluetoothCandidates
+                : ImprovedBluetoothChatApp::tcpCandidates, MeshConfig.AUTO_DEGREE);
+        System.out.println("Auto mesh on " + node.getListenAddress() + ", keeping " + autoMesh.getTargetDegree() + " links");
+        return autoMesh.start();
+    }
 
-            if (devices.isEmpty()) {
-                System.out.println("No devices found.");
-                return;
+    // Peers from the directory, refreshed by a discovery run when there are
+    // none or the last run is older than the discovery interval.
+    private static List<AutoMesh.Candidate> bluetoothCandidates() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        if (directory.getEntries().isEmpty() || now - lastDiscovery > MeshConfig.AUTO_DISCOVERY_INTERVAL_MS) {
+            lastDiscovery = now;
+            try {
+                discovery.discover(MeshConfig.DISCOVERY_TIMEOUT_MS, null);
+            } catch (BluetoothStateException e) {
+                System.err.println("Bluetooth discovery error: " + e.getMessage());
             }
+        }
+        List<AutoMesh.Candidate> candidates = new ArrayList<>();
+        for (ServiceDirectory.Entry entry : directory.getEntries()) {
+            candidates.add(new AutoMesh.Candidate(entry.getUrl(), addressToNodeId(entry.getAddress())));
+        }
+        return candidates;
+    }
 
-            System.out.println("Discovered devices:");
-            for (int i = 0; i < devices.size(); i++) {
-                System.out.println((i + 1) + ". " + getFriendlyNameSafe(devices.get(i)));
+    private static List<AutoMesh.Candidate> tcpCandidates() {
+        List<AutoMesh.Candidate> candidates = new ArrayList<>();
+        for (String address : MeshConfig.AUTO_PEERS.split(",")) {
+            if (!address.trim().isEmpty()) {
+                candidates.add(new AutoMesh.Candidate(address.trim(), 0));
             }
-            System.out.print("Select device (1-" + devices.size() + "): ");
-            int deviceIndex = scanner.nextInt() - 1;
-            scanner.nextLine(); // Consume newline
+        }
+        return candidates;
+    }
 
-            if (deviceIndex < 0 || deviceIndex >= devices.size()) {
-                System.out.println("Invalid device selection.");
-                return;
+    // Offers peers cached in the directory first, so a reconnect skips
+    // inquiry and SDP; a cached URL that no longer works is forgotten.
+    private static boolean startClient(Scanner scanner) {
+        List<ServiceDirectory.Entry> known = directory.getEntries();
+        if (!known.isEmpty()) {
+            System.out.println("Known peers:");
+            ServiceDirectory.Entry entry = selectPeer(scanner, known, "0 to scan");
+            if (entry != null) {
+                if (connectTo(entry)) {
+                    return true;
+                }
+                System.out.println("Cached service for " + entry.getName() + " is stale, scanning instead.");
             }
-
-            RemoteDevice selectedDevice = devices.get(deviceIndex);
-            String url = discoverService(selectedDevice);
-            if (url == null) {
-                System.out.println("No chat service found on selected device.");
-                return;
+        }
+        try {
+            System.out.println("Discovering chat peers (" + discovery.getMaxSearches() + " concurrent service searches)...");
+            List<ServiceDirectory.Entry> services = discovery.discover(MeshConfig.DISCOVERY_TIMEOUT_MS,
+                    found -> System.out.println("Found " + found.getName() + " (" + found.getAddress() + ")"));
+            if (services.isEmpty()) {
+                System.out.println("No chat peers found.");
+                return false;
             }
-
-            StreamConnection connection = (StreamConnection) Connector.open(url);
-            System.out.println("Connected to " + getFriendlyNameSafe(selectedDevice));
-            handleNewConnection(connection, selectedDevice);
+            System.out.println("Chat peers:");
+            ServiceDirectory.Entry entry = selectPeer(scanner, services, null);
+            return entry != null && connectTo(entry);
         } catch (BluetoothStateException e) {
             System.err.println("Bluetooth discovery error: " + e.getMessage());
-        } catch (IOException e) {
-            System.err.println("Client connection error: " + e.getMessage());
         } catch (InterruptedException e) {
             System.err.println("Discovery interrupted: " + e.getMessage());
         }
+        return false;
     }
 
-    private static String discoverService(RemoteDevice device) throws BluetoothStateException, InterruptedException {
-        javax.bluetooth.UUID[] uuidSet = { APP_UUID };
-        ServiceDiscoveryListener listener = new ServiceDiscoveryListener();
-        discoveryAgent.searchServices(null, uuidSet, device, listener);
-        synchronized (listener) {
-            listener.wait();
+    private static ServiceDirectory.Entry selectPeer(Scanner scanner, List<ServiceDirectory.Entry> peers, String alternative) {
+        for (int i = 0; i < peers.size(); i++) {
+            System.out.println((i + 1) + ". " + peers.get(i).getName() + " (" + peers.get(i).getAddress() + ")");
+        }
+        System.out.print("Select peer (1-" + peers.size() + (alternative != null ? ", " + alternative : "") + "): ");
+        int index = scanner.nextInt() - 1;
+        scanner.nextLine(); // Consume newline
+        if (index < 0 || index >= peers.size()) {
+            if (alternative == null) System.out.println("Invalid peer selection.");
+            return null;
         }
-        return listener.getServiceURL();
+        return peers.get(index);
     }
 
-    private static void handleNewConnection(StreamConnection connection, RemoteDevice device) {
-        try {
-            DataInputStream input = new DataInputStream(connection.openInputStream());
-            DataOutputStream output = new DataOutputStream(connection.openOutputStream());
-
-            // Perform Diffie-Hellman key exchange
-            ObjectOutputStream oos = new ObjectOutputStream(output);
-            oos.writeObject(dhKeyPair.getPublic());
-            oos.flush();
-            ObjectInputStream ois = new ObjectInputStream(input);
-            PublicKey remotePublicKey = (PublicKey) ois.readObject();
-
-            KeyAgreement keyAgreement = KeyAgreement.getInstance("DH");
-            keyAgreement.init(dhKeyPair.getPrivate());
-            keyAgreement.doPhase(remotePublicKey, true);
-            byte[] sharedSecret = keyAgreement.generateSecret();
-            aesKey = new SecretKeySpec(Arrays.copyOf(sharedSecret, 16), "AES");
-
-            synchronized (connectedDevices) {
-                connectedDevices.add(device);
-                inputStreams.put(device, input);
-                outputStreams.put(device, output);
-            }
-
-            new Thread(() -> {
-                try {
-                    while (running) {
-                        String message = input.readUTF();
-                        handleMessage(message, device);
-                    }
-                } catch (IOException e) {
-                    if (running) System.err.println("Communication error with " + getFriendlyNameSafe(device) + ": " + e.getMessage());
-                } finally {
-                    cleanupDevice(device);
-                }
-            }).start();
-
-            if (connectedDevices.size() == 1) {
-                startUserInput();
-            }
-        } catch (IOException e) {
-            System.err.println("Connection setup error with " + getFriendlyNameSafe(device) + ": " + e.getMessage());
-        } catch (GeneralSecurityException e) {
-            System.err.println("Security error with " + getFriendlyNameSafe(device) + ": " + e.getMessage());
-        } catch (ClassNotFoundException e) {
-            System.err.println("Key exchange error with " + getFriendlyNameSafe(device) + ": " + e.getMessage());
+    private static boolean connectTo(ServiceDirectory.Entry entry) {
+        if (node.connect(entry.getUrl())) {
+            System.out.println("Connected to " + entry.getName());
+            return true;
         }
+        directory.remove(entry.getAddress());
+        return false;
     }
 
-    private static void handleMessage(String message, RemoteDevice sender) throws IOException {
-        try {
-            String[] parts = message.split(":", 2);
-            if (parts.length != 2) {
-                System.err.println("Invalid message format from " + getFriendlyNameSafe(sender));
-                return;
-            }
-            String msgId = parts[0];
-            String encryptedMsg = parts[1];
+    private static boolean startTcpClient(Scanner scanner) {
+        System.out.print("Peer address (host:port): ");
+        String address = scanner.nextLine().trim();
+        boolean connected = node.connect(address);
+        if (connected) System.out.println("Connected to " + address);
+        return connected;
+    }
 
-            synchronized (seenMessages) {
-                if (seenMessages.contains(msgId)) {
-                    return;
-                }
-                seenMessages.add(msgId);
-            }
+    private static final MessageListener CONSOLE_LISTENER = new MessageListener() {
+        @Override
+        public void onMessage(long originNodeId, long sequence, String message) {
+            System.out.println("Received from " + Long.toHexString(originNodeId) + ": " + message);
+        }
 
-            String decrypted = decrypt(encryptedMsg);
-            System.out.println("Received from " + getFriendlyNameSafe(sender) + ": " + decrypted);
-            forwardToAll(encryptedMsg, msgId, sender);
-        } catch (GeneralSecurityException e) {
-            System.err.println("Decryption error: " + e.getMessage());
+        @Override
+        public void onDirectMessage(long originNodeId, long sequence, String message) {
+            System.out.println("Direct from " + Long.toHexString(originNodeId) + ": " + message);
         }
-    }
 
-    private static void forwardToAll(String encryptedMsg, String msgId, RemoteDevice sender) {
-        String fullMsg = msgId + ":" + encryptedMsg;
-        synchronized (connectedDevices) {
-            for (RemoteDevice device : connectedDevices) {
-                if (!device.equals(sender)) {
-                    try {
-                        DataOutputStream out = outputStreams.get(device);
-                        out.writeUTF(fullMsg);
-                        out.flush();
-                    } catch (IOException e) {
-                        System.err.println("Error forwarding to " + getFriendlyNameSafe(device) + ": " + e.getMessage());
-                    }
-                }
-            }
+        @Override
+        public void onFileReceived(long originNodeId, String name, Path file) {
+            System.out.println("File from " + Long.toHexString(originNodeId) + ": " + name + " saved to " + file);
         }
-    }
+    };
 
-    private static void startUserInput() {
-        Scanner scanner = new Scanner(System.in);
+    private static void startUserInput(Scanner scanner) {
         System.out.println("Enter messages to send (type 'exit' to quit):");
-        while (running) {
+        while (scanner.hasNextLine()) {
             String message = scanner.nextLine();
             if ("exit".equalsIgnoreCase(message)) {
                 shutdown();
                 break;
             }
-            try {
-                String msgId = generateMsgId(message);
-                String encrypted = encrypt(message);
-                String fullMsg = msgId + ":" + encrypted;
-                synchronized (connectedDevices) {
-                    for (DataOutputStream out : outputStreams.values()) {
-                        out.writeUTF(fullMsg);
-                        out.flush();
-                    }
+            if ("/stats".equalsIgnoreCase(message)) {
+                node.printStats(System.out);
+                if (autoMesh != null) System.out.println("Auto mesh: " + autoMesh);
+                continue;
+            }
+            if ("/routes".equalsIgnoreCase(message)) {
+                System.out.println("Routes (" + node.getRoutes().size() + "):");
+                node.getRoutes().print(System.out);
+                continue;
+            }
+            if (message.startsWith("/msg ")) {
+                sendDirect(message.substring("/msg ".length()).trim());
+                continue;
+            }
+            if (message.startsWith("/send ")) {
+                sendFile(message.substring("/send ".length()).trim());
+                continue;
+            }
+            if (message.startsWith("/forwarding ")) {
+                String mode = message.substring("/forwarding ".length()).trim();
+                try {
+                    node.setForwarding(ForwardingMode.valueOf(mode.toUpperCase()));
+                    System.out.println("Forwarding: " + mode);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Unknown forwarding mode " + mode + " (flood, gossip, counter or coverage)");
                 }
+                continue;
+            }
+            if (message.startsWith("/connect ")) {
+                node.connect(message.substring("/connect ".length()).trim());
+                continue;
+            }
+            try {
+                node.send(message);
                 System.out.println("Sent: " + message);
-            } catch (IOException e) {
-                System.err.println("Error sending message: " + e.getMessage());
             } catch (GeneralSecurityException e) {
                 System.err.println("Encryption error: " + e.getMessage());
             }
         }
-        scanner.close();
-    }
-
-    private static String generateMsgId(String msg) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        String input = msg + System.currentTimeMillis();
-        byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(hash);
-    }
-
-    private static String encrypt(String message) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        byte[] iv = new byte[16];
-        new SecureRandom().nextBytes(iv);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        cipher.init(Cipher.ENCRYPT_MODE, aesKey, ivSpec);
-        byte[] encrypted = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
-        byte[] combined = new byte[iv.length + encrypted.length];
-        System.arraycopy(iv, 0, combined, 0, iv.length);
-        System.arraycopy(encrypted, 0, combined, iv.length, encrypted.length);
-        return Base64.getEncoder().encodeToString(combined);
     }
 
-    private static String decrypt(String encryptedMessage) throws GeneralSecurityException {
-        byte[] decoded = Base64.getDecoder().decode(encryptedMessage);
-        byte[] iv = Arrays.copyOfRange(decoded, 0, 16);
-        byte[] encrypted = Arrays.copyOfRange(decoded, 16, decoded.length);
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(iv));
-        byte[] decrypted = cipher.doFinal(encrypted);
-        return new String(decrypted, StandardCharsets.UTF_8);
-    }
-
-    private static void cleanupDevice(RemoteDevice device) {
-        synchronized (connectedDevices) {
-            try {
-                DataInputStream in = inputStreams.remove(device);
-                DataOutputStream out = outputStreams.remove(device);
-                if (in != null) in.close();
-                if (out != null) out.close();
-                connectedDevices.remove(device);
-                System.out.println("Disconnected: " + getFriendlyNameSafe(device));
-            } catch (IOException e) {
-                System.err.println("Error cleaning up device " + getFriendlyNameSafe(device) + ": " + e.getMessage());
-            }
+    private static void sendDirect(String command) {
+        int separator = command.indexOf(' ');
+        if (separator < 0) {
+            System.out.println("Usage: /msg <node id> <message>");
+            return;
+        }
+        try {
+            long destination = Long.parseUnsignedLong(command.substring(0, separator), 16);
+            node.sendDirect(destination, command.substring(separator + 1));
+            System.out.println("Sent to " + Long.toHexString(destination) + ": " + command.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid node id " + command.substring(0, separator));
+        } catch (GeneralSecurityException e) {
+            System.err.println("Encryption error: " + e.getMessage());
         }
     }
 
-    private static void shutdown() {
-        running = false;
+    private static void sendFile(String command) {
+        int separator = command.indexOf(' ');
+        if (separator < 0) {
+            System.out.println("Usage: /send <node id> <file>");
+            return;
+        }
         try {
-            synchronized (connectedDevices) {
-                for (RemoteDevice device : new ArrayList<>(connectedDevices)) {
-                    cleanupDevice(device);
-                }
-            }
-            if (notifier != null) {
-                notifier.close();
-            }
+            long destination = Long.parseUnsignedLong(command.substring(0, separator), 16);
+            Path file = Paths.get(command.substring(separator + 1).trim());
+            node.sendFile(destination, file).whenComplete((done, failure) -> System.out.println(failure == null
+                    ? "Delivered " + file.getFileName() + " to " + Long.toHexString(destination)
+                    : "Sending " + file.getFileName() + " failed: " + failure.getMessage()));
+            System.out.println("Sending " + file.getFileName() + " to " + Long.toHexString(destination));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid node id " + command.substring(0, separator));
         } catch (IOException e) {
-            System.err.println("Shutdown error: " + e.getMessage());
+            System.err.println("Cannot send file: " + e.getMessage());
         }
-        System.exit(0);
     }
-}
 
-class DeviceDiscoveryListener implements DiscoveryListener {
-    private final List<RemoteDevice> devices;
-
-    public DeviceDiscoveryListener(List<RemoteDevice> devices) {
-        this.devices = devices;
-    }
-
-    @Override
-    public void deviceDiscovered(RemoteDevice btDevice, DeviceClass cod) {
-        devices.add(btDevice);
-    }
-
-    @Override
-    public void inquiryCompleted(int discType) {
-        synchronized (this) {
-            notify();
+    private static void exposeMetrics(long nodeId) {
+        if (MeshConfig.JMX) {
+            MetricsMBean.register(node.getMetrics(), "bluemesh:type=MeshNode,node=" + Long.toHexString(nodeId));
         }
-    }
-
-    @Override
-    public void servicesDiscovered(int transID, ServiceRecord[] servRecord) {}
-
-    @Override
-    public void serviceSearchCompleted(int transID, int respCode) {}
-}
-
-class ServiceDiscoveryListener implements DiscoveryListener {
-    private String serviceURL;
-
-    public String getServiceURL() {
-        return serviceURL;
-    }
-
-    @Override
-    public void deviceDiscovered(RemoteDevice btDevice, DeviceClass cod) {}
-
-    @Override
-    public void inquiryCompleted(int discType) {}
-
-    @Override
-    public void servicesDiscovered(int transID, ServiceRecord[] servRecord) {
-        for (ServiceRecord record : servRecord) {
-            String url = record.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
-            if (url != null) {
-                serviceURL = url;
-                break;
+        if (MeshConfig.METRICS_PORT >= 0) {
+            try {
+                MetricsServer server = new MetricsServer(node.getMetrics(), MeshConfig.METRICS_PORT);
+                if (server.start(node.getRuntime())) {
+                    System.out.println("Metrics on http://localhost:" + server.getPort() + "/metrics");
+                }
+            } catch (IOException e) {
+                System.err.println("Metrics server failed: " + e.getMessage());
             }
         }
     }
 
-    @Override
-    public void serviceSearchCompleted(int transID, int respCode) {
-        synchronized (this) {
-            notify();
-        }
+    private static void shutdown() {
+        node.shutdown();
+        System.exit(0);
     }
 }
\ No newline at end of file
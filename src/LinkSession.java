@@ -0,0 +1,57 @@
+// Keys and identity negotiated for one link. Each direction has its own key
+// so the two ends never encrypt under the same key and nonce space.
+final class LinkSession {
+    public static final int CAP_COMPRESSION = 0x01;
+    public static final int CAP_RECONCILE = 0x02;
+
+    private final long remoteNodeId;
+    private final int remoteCapabilities;
+    private final CryptoSession sendCrypto;
+    private final CryptoSession receiveCrypto;
+    private final byte[] resumptionSecret;
+    private final boolean resumed;
+    private final long setupNanos;
+
+    public LinkSession(long remoteNodeId, int remoteCapabilities, byte[] sendKey, byte[] receiveKey,
+            byte[] resumptionSecret, boolean resumed, long setupNanos) {
+        this.remoteNodeId = remoteNodeId;
+        this.remoteCapabilities = remoteCapabilities;
+        this.sendCrypto = new CryptoSession(sendKey);
+        this.receiveCrypto = new CryptoSession(receiveKey);
+        this.resumptionSecret = resumptionSecret;
+        this.resumed = resumed;
+        this.setupNanos = setupNanos;
+    }
+
+    public long getRemoteNodeId() {
+        return remoteNodeId;
+    }
+
+    public int getRemoteCapabilities() {
+        return remoteCapabilities;
+    }
+
+    public CryptoSession getSendCrypto() {
+        return sendCrypto;
+    }
+
+    public CryptoSession getReceiveCrypto() {
+        return receiveCrypto;
+    }
+
+    public byte[] getResumptionSecret() {
+        return resumptionSecret;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public long getSetupNanos() {
+        return setupNanos;
+    }
+
+    public double getSetupMillis() {
+        return setupNanos / 1_000_000.0;
+    }
+}
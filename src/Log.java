@@ -0,0 +1,106 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Asynchronous leveled logger. Callers only check the level and enqueue the
+// format string and arguments; a daemon thread formats and prints them, so
+// a slow console never stalls a reader or relay thread. When the queue is
+// full the record is dropped and counted instead of blocking the caller.
+// Errors and warnings go to stderr, the rest to stdout.
+final class Log {
+    enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    private static final Level LEVEL = MeshConfig.LOG_LEVEL;
+    private static final ArrayBlockingQueue<Record> QUEUE = new ArrayBlockingQueue<>(MeshConfig.LOG_QUEUE_CAPACITY);
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final AtomicInteger PENDING = new AtomicInteger();
+
+    static {
+        Thread writer = new Thread(Log::drain, "bluemesh-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) <= 0;
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    // Waits (briefly) for queued records to be printed, e.g. before exit.
+    public static void flush(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (PENDING.get() > 0 && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static void log(Level level, String format, Object[] args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        PENDING.incrementAndGet();
+        if (!QUEUE.offer(new Record(level, format, args))) {
+            PENDING.decrementAndGet();
+            DROPPED.increment();
+        }
+    }
+
+    private static void drain() {
+        try {
+            while (true) {
+                Record record = QUEUE.take();
+                String text;
+                try {
+                    text = record.args.length == 0 ? record.format : String.format(record.format, record.args);
+                } catch (RuntimeException e) {
+                    text = record.format + " (bad log arguments: " + e + ")";
+                }
+                if (record.level.compareTo(Level.WARN) <= 0) {
+                    System.err.println(text);
+                } else {
+                    System.out.println(text);
+                }
+                PENDING.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Record {
+        final Level level;
+        final String format;
+        final Object[] args;
+
+        Record(Level level, String format, Object[] args) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// In-process transport: nodes register under a name in a shared registry and
+// connect through a pair of bounded byte pipes, so hundreds of nodes can run
+// in one JVM with real backpressure but no sockets.
+final class MemoryTransport implements Transport {
+    private static final ConcurrentHashMap<String, Server> SERVERS = new ConcurrentHashMap<>();
+    private static final TransportChannel CLOSED = new Endpoint("closed", new Pipe(1), new Pipe(1));
+
+    private final String localAddress;
+    private final int pipeCapacity;
+
+    public MemoryTransport(String localAddress) {
+        this(localAddress, 64 * 1024);
+    }
+
+    public MemoryTransport(String localAddress, int pipeCapacity) {
+        this.localAddress = localAddress;
+        this.pipeCapacity = pipeCapacity;
+    }
+
+    @Override
+    public String getName() {
+        return "memory";
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        Server server = new Server(localAddress);
+        if (SERVERS.putIfAbsent(localAddress, server) != null) {
+            throw new IOException("Address already in use: " + localAddress);
+        }
+        return server;
+    }
+
+    @Override
+    public TransportChannel connect(String address) throws IOException {
+        Server server = SERVERS.get(address);
+        if (server == null) {
+            throw new IOException("Connection refused: " + address);
+        }
+        Pipe toServer = new Pipe(pipeCapacity);
+        Pipe toClient = new Pipe(pipeCapacity);
+        server.offer(new Endpoint(localAddress, toServer, toClient));
+        return new Endpoint(address, toClient, toServer);
+    }
+
+    private static final class Server implements TransportServer {
+        private final String address;
+        private final LinkedBlockingQueue<TransportChannel> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        Server(String address) {
+            this.address = address;
+        }
+
+        void offer(TransportChannel channel) throws IOException {
+            if (closed) {
+                throw new IOException("Connection refused: " + address);
+            }
+            pending.add(channel);
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return address;
+        }
+
+        @Override
+        public TransportChannel accept() throws IOException {
+            try {
+                TransportChannel channel = pending.take();
+                if (channel == CLOSED) {
+                    throw new IOException("Server closed");
+                }
+                return channel;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Accept interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            SERVERS.remove(address, this);
+            pending.add(CLOSED);
+        }
+    }
+
+    private static final class Endpoint implements TransportChannel {
+        private final String remoteAddress;
+        private final Pipe in;
+        private final Pipe out;
+
+        Endpoint(String remoteAddress, Pipe in, Pipe out) {
+            this.remoteAddress = remoteAddress;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in.input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out.output;
+        }
+
+        @Override
+        public void close() {
+            in.close();
+            out.close();
+        }
+    }
+
+    // Single-producer, single-consumer bounded byte ring.
+    private static final class Pipe {
+        private final byte[] buffer;
+        private int readPosition;
+        private int size;
+        private boolean closed;
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return size;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (size == 0) {
+                    if (closed) {
+                        return -1;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read interrupted");
+            }
+            int count = Math.min(len, size);
+            int first = Math.min(count, buffer.length - readPosition);
+            System.arraycopy(buffer, readPosition, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, count - first);
+            readPosition = (readPosition + count) % buffer.length;
+            size -= count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while (len > 0) {
+                    if (closed) {
+                        throw new ClosedChannelException();
+                    }
+                    if (size == buffer.length) {
+                        wait();
+                        continue;
+                    }
+                    int writePosition = (readPosition + size) % buffer.length;
+                    int count = Math.min(len, Math.min(buffer.length - size, buffer.length - writePosition));
+                    System.arraycopy(b, off, buffer, writePosition, count);
+                    size += count;
+                    off += count;
+                    len -= count;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Write interrupted");
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
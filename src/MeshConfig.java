@@ -0,0 +1,84 @@
+final class MeshConfig {
+    public static final String TRANSPORT = System.getProperty("bluemesh.transport", "bluetooth");
+    public static final String TCP_HOST = System.getProperty("bluemesh.tcp.host", "127.0.0.1");
+    public static final int TCP_PORT = Integer.getInteger("bluemesh.tcp.port", 7600);
+    public static final long NODE_ID = Long.parseUnsignedLong(System.getProperty("bluemesh.nodeId", "0"), 16);
+    public static final int MAX_LINKS = Integer.getInteger("bluemesh.maxLinks", 7);
+    public static final long SHUTDOWN_TIMEOUT_MS = Long.getLong("bluemesh.shutdownTimeoutMs", 2000L);
+    // No default: the payload key is derived from this, so it has to be shared out of band.
+    public static final String MESH_SECRET = System.getProperty("bluemesh.meshSecret");
+    public static final int TICKET_CAPACITY = Integer.getInteger("bluemesh.ticket.capacity", 256);
+    public static final long TICKET_TTL_MS = Long.getLong("bluemesh.ticket.ttlMs", 12 * 60 * 60 * 1000L);
+    public static final boolean RELAY_ONLY = Boolean.getBoolean("bluemesh.relayOnly");
+    public static final int DELIVERY_QUEUE_CAPACITY = Integer.getInteger("bluemesh.delivery.capacity", 1024);
+    // Measured on MeshSimulator's default 1000-node geometric topology: TTL 64
+    // and a counter threshold of 5 keep flood delivery (98.6%); gossip at 0.95
+    // delivers 89% for 13% fewer transmissions, since sparse graphs need p near 1.
+    public static final int TTL = Integer.getInteger("bluemesh.ttl", 64);
+    public static final ForwardingMode FORWARDING = enumProperty("bluemesh.forwarding", ForwardingMode.FLOOD);
+    public static final double GOSSIP_PROBABILITY = Double.parseDouble(System.getProperty("bluemesh.gossip.probability", "0.95"));
+    public static final int GOSSIP_ALWAYS_HOPS = Integer.getInteger("bluemesh.gossip.alwaysHops", 1);
+    public static final int COUNTER_THRESHOLD = Integer.getInteger("bluemesh.counter.threshold", 5);
+    public static final long FORWARD_JITTER_MS = Long.getLong("bluemesh.forward.jitterMs", 40L);
+    public static final long ROUTE_INTERVAL_MS = Long.getLong("bluemesh.route.intervalMs", 5000L);
+    public static final long ROUTE_EXPIRY_MS = Long.getLong("bluemesh.route.expiryMs", 3 * ROUTE_INTERVAL_MS);
+    // Route metric that counts as unreachable, at most 255 since advertisements
+    // carry it in one byte. Destinations this many hops away get no route, and
+    // direct frames to them fall back to flooding.
+    public static final int ROUTE_MAX_METRIC = Math.max(2, Math.min(255, Integer.getInteger("bluemesh.route.maxMetric", 64)));
+    public static final boolean COMPRESSION = !"false".equalsIgnoreCase(System.getProperty("bluemesh.compression"));
+    public static final int QUEUE_CAPACITY = Integer.getInteger("bluemesh.queue.capacity", 256);
+    public static final OverflowPolicy QUEUE_OVERFLOW = enumProperty("bluemesh.queue.overflow", OverflowPolicy.DROP_OLDEST);
+    public static final int BATCH_MAX_FRAMES = Integer.getInteger("bluemesh.batch.maxFrames", 32);
+    public static final int BATCH_MAX_BYTES = Integer.getInteger("bluemesh.batch.maxBytes", 16 * 1024);
+    public static final long BATCH_DELAY_MICROS = Long.getLong("bluemesh.batch.delayMicros", 2000L);
+    public static final boolean OUTBOX = !"false".equalsIgnoreCase(System.getProperty("bluemesh.outbox"));
+    public static final String OUTBOX_DIR = System.getProperty("bluemesh.outbox.dir",
+            System.getProperty("user.home") + "/.bluemesh/outbox");
+    public static final long OUTBOX_TTL_MS = Long.getLong("bluemesh.outbox.ttlMs", 60 * 60 * 1000L);
+    public static final int OUTBOX_SEGMENT_BYTES = Integer.getInteger("bluemesh.outbox.segmentBytes", 4 * 1024 * 1024);
+    public static final int OUTBOX_MAX_SEGMENTS = Integer.getInteger("bluemesh.outbox.maxSegments", 16);
+    public static final long OUTBOX_FLUSH_MS = Long.getLong("bluemesh.outbox.flushMs", 50L);
+    public static final String DIRECTORY_FILE = System.getProperty("bluemesh.directory.file",
+            System.getProperty("user.home") + "/.bluemesh/services");
+    public static final long DIRECTORY_TTL_MS = Long.getLong("bluemesh.directory.ttlMs", 7 * 24 * 60 * 60 * 1000L);
+    public static final long DISCOVERY_TIMEOUT_MS = Long.getLong("bluemesh.discovery.timeoutMs", 30_000L);
+    public static final Log.Level LOG_LEVEL = enumProperty("bluemesh.log.level", Log.Level.INFO);
+    public static final int LOG_QUEUE_CAPACITY = Integer.getInteger("bluemesh.log.queueCapacity", 4096);
+    public static final boolean JMX = !"false".equalsIgnoreCase(System.getProperty("bluemesh.jmx"));
+    public static final int METRICS_PORT = Integer.getInteger("bluemesh.metrics.port", -1);
+    public static final boolean AUTO = Boolean.getBoolean("bluemesh.auto");
+    public static final int AUTO_DEGREE = Integer.getInteger("bluemesh.auto.degree", 3);
+    public static final String AUTO_PEERS = System.getProperty("bluemesh.auto.peers", "");
+    public static final long AUTO_INTERVAL_MS = Long.getLong("bluemesh.auto.intervalMs", 1000L);
+    public static final long AUTO_DISCOVERY_INTERVAL_MS = Long.getLong("bluemesh.auto.discoveryIntervalMs", 60_000L);
+    public static final long DIAL_TIMEOUT_MS = Long.getLong("bluemesh.dial.timeoutMs", 15_000L);
+    public static final long BACKOFF_BASE_MS = Long.getLong("bluemesh.backoff.baseMs", 1000L);
+    public static final long BACKOFF_MAX_MS = Long.getLong("bluemesh.backoff.maxMs", 60_000L);
+    public static final int RECONCILE_CELLS = Integer.getInteger("bluemesh.reconcile.cells", 192);
+    public static final String TRANSFER_DIR = System.getProperty("bluemesh.transfer.dir",
+            System.getProperty("user.home") + "/.bluemesh/transfers");
+    public static final int TRANSFER_CHUNK_BYTES = Integer.getInteger("bluemesh.transfer.chunkBytes", 16 * 1024);
+    public static final int TRANSFER_WINDOW = Integer.getInteger("bluemesh.transfer.window", 16);
+    public static final long TRANSFER_RTO_MS = Long.getLong("bluemesh.transfer.rtoMs", 1000L);
+    public static final long TRANSFER_TIMEOUT_MS = Long.getLong("bluemesh.transfer.timeoutMs", 10 * 60 * 1000L);
+    // Incoming manifests over either limit are refused before any part file is created.
+    public static final long TRANSFER_MAX_BYTES = Long.getLong("bluemesh.transfer.maxBytes", 256L * 1024 * 1024);
+    public static final int TRANSFER_MAX_INCOMING = Integer.getInteger("bluemesh.transfer.maxIncoming", 8);
+    public static final int RECONCILE_MAX_CELLS = Integer.getInteger("bluemesh.reconcile.maxCells", 32768);
+
+    private MeshConfig() {}
+
+    static <E extends Enum<E>> E enumProperty(String key, E defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs many MeshNodes in one JVM over the memory or TCP loopback transport,
+// wired as a ring with chords or left to AutoMesh, and reports topology
+// formation, delivery, throughput and latency.
+// Usage: java MeshLoadTest [memory|tcp] [nodes] [messages] [ring|auto]
+public class MeshLoadTest {
+    public static void main(String[] args) throws Exception {
+        // Every node runs in this process, so any secret will do.
+        if (System.getProperty("bluemesh.meshSecret") == null) {
+            System.setProperty("bluemesh.meshSecret", "load-test");
+        }
+        String transportName = args.length > 0 ? args[0] : "memory";
+        int nodeCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int messageCount = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        boolean auto = args.length > 3 && "auto".equalsIgnoreCase(args[3]);
+
+        long expected = (long) messageCount * (nodeCount - 1);
+        CountDownLatch delivered = new CountDownLatch((int) Math.min(expected, Integer.MAX_VALUE));
+        long[] latencies = new long[(int) Math.min(expected, Integer.MAX_VALUE)];
+        AtomicInteger latencyCount = new AtomicInteger();
+        MessageListener listener = (origin, sequence, message) -> {
+            long sentAt = Long.parseLong(message.substring(0, message.indexOf(' ')));
+            int index = latencyCount.getAndIncrement();
+            if (index < latencies.length) latencies[index] = System.nanoTime() - sentAt;
+            delivered.countDown();
+        };
+
+        List<MeshNode> nodes = new ArrayList<>();
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            MeshNode node = new MeshNode(i + 1, createTransport(transportName, i), listener);
+            if (!node.listen()) {
+                System.err.println("Node " + i + " failed to listen");
+                return;
+            }
+            nodes.add(node);
+            addresses.add(node.getListenAddress());
+        }
+
+        long linkStart = System.nanoTime();
+        int links = 0;
+        if (auto) {
+            links = formAutoMesh(nodes, addresses, 30_000);
+        } else {
+            for (int i = 0; i < nodeCount; i++) {
+                if (nodeCount > 1 && nodes.get(i).connect(addresses.get((i + 1) % nodeCount))) links++;
+                if (nodeCount > 8 && nodes.get(i).connect(addresses.get((i + nodeCount / 3) % nodeCount))) links++;
+            }
+            awaitLinks(nodes, links * 2, 30_000);
+        }
+        System.out.printf("%d nodes over %s, %d links up in %.1f ms%n", nodeCount, transportName, links,
+                (System.nanoTime() - linkStart) / 1e6);
+
+        long sendStart = System.nanoTime();
+        for (int i = 0; i < messageCount; i++) {
+            try {
+                nodes.get(i % nodeCount).send(System.nanoTime() + " load message " + i);
+            } catch (GeneralSecurityException e) {
+                System.err.println("Encryption error: " + e.getMessage());
+            }
+        }
+        double sendSeconds = (System.nanoTime() - sendStart) / 1e9;
+        boolean complete = delivered.await(60, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - sendStart) / 1e9;
+
+        int samples = Math.min(latencyCount.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        System.out.printf("Delivered %d/%d%s in %.2f s (%.0f deliveries/s)%n", expected - delivered.getCount(), expected,
+                complete ? "" : " (timed out)", seconds, (expected - delivered.getCount()) / seconds);
+        if (samples > 0) {
+            System.out.printf("Latency p50=%.2f ms p99=%.2f ms max=%.2f ms%n", sorted[samples / 2] / 1e6,
+                    sorted[Math.min(samples - 1, (int) (samples * 0.99))] / 1e6, sorted[samples - 1] / 1e6);
+        }
+        long frames = 0;
+        long batches = 0;
+        int maxBatch = 0;
+        for (MeshNode node : nodes) {
+            for (PeerLink link : node.getLinks().values()) {
+                frames += link.getSent();
+                batches += link.getBatches();
+                maxBatch = Math.max(maxBatch, link.getMaxBatch());
+            }
+        }
+        System.out.printf("Sending took %.2f s; %d frames in %d writes (avg batch %.2f, max %d)%n", sendSeconds, frames,
+                batches, batches == 0 ? 0.0 : (double) frames / batches, maxBatch);
+        for (MeshNode node : nodes) {
+            node.shutdown();
+        }
+    }
+
+    private static Transport createTransport(String name, int index) {
+        if ("tcp".equalsIgnoreCase(name)) {
+            return new TcpTransport("127.0.0.1", 0);
+        }
+        return new MemoryTransport("node-" + index);
+    }
+
+    // Every node dials the others through AutoMesh until all reach the target
+    // degree; returns the number of links formed.
+    private static int formAutoMesh(List<MeshNode> nodes, List<String> addresses, long timeoutMillis) throws InterruptedException {
+        List<AutoMesh.Candidate> candidates = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            candidates.add(new AutoMesh.Candidate(addresses.get(i), nodes.get(i).getNodeId()));
+        }
+        List<AutoMesh> meshes = new ArrayList<>();
+        for (MeshNode node : nodes) {
+            AutoMesh mesh = new AutoMesh(node, () -> candidates, Math.min(MeshConfig.AUTO_DEGREE, nodes.size() - 1));
+            mesh.start();
+            meshes.add(mesh);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean formed = false;
+        while (!formed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            formed = true;
+            for (AutoMesh mesh : meshes) {
+                formed &= mesh.isFormed();
+            }
+        }
+        long slowest = 0;
+        long duplicates = 0;
+        int ends = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            meshes.get(i).stop();
+            slowest = Math.max(slowest, meshes.get(i).getFormedMillis());
+            duplicates += nodes.get(i).getDuplicateLinks();
+            ends += nodes.get(i).getLinks().size();
+        }
+        System.out.printf("Auto mesh %s: slowest node reached degree %d after %d ms, %d duplicate links closed%n",
+                formed ? "formed" : "timed out", meshes.get(0).getTargetDegree(), slowest, duplicates);
+        return ends / 2;
+    }
+
+    private static void awaitLinks(List<MeshNode> nodes, int expected, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            int total = 0;
+            for (MeshNode node : nodes) {
+                total += node.getLinks().size();
+            }
+            if (total >= expected) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        System.err.println("Timed out waiting for links");
+    }
+}
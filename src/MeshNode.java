@@ -0,0 +1,1036 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+
+// One mesh participant over an arbitrary Transport: accepts and dials links,
+// runs the handshake, relays frames and delivers messages to a listener.
+// A node without a listener is a pure relay and never decrypts.
+// With an outbox, every frame that may still travel is also logged. When a
+// link comes up the two ends reconcile their outboxes with IBLT summaries
+// and send each other only the frames the other lacks; peers without that
+// capability get a replay from their cursor instead.
+final class MeshNode {
+    private static final int SEEN_MESSAGES_CAPACITY = 1 << 16;
+    private static final long SEEN_MESSAGES_WINDOW_MS = 10 * 60 * 1000L;
+    private static final String PAYLOAD_KEY_SALT = "ImprovedBluetoothChatApp";
+    private static final long TRIGGERED_UPDATE_DELAY_MS = 500;
+    private static final int REPLAY_BATCH = 32;
+    private static final long REPLAY_BACKOFF_MS = 5;
+    // Message ids carry the send time in milliseconds above a 16-bit counter,
+    // so receivers can measure end-to-end latency from the id alone.
+    private static final int MESSAGE_ID_TIME_SHIFT = 16;
+    private static final long MAX_PLAUSIBLE_LATENCY_MS = 24 * 60 * 60 * 1000L;
+
+    private final long nodeId;
+    private final Transport transport;
+    private final MessageListener listener;
+    private final ConnectionRuntime runtime;
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    private final DedupCache seenMessages;
+    private final AtomicLong messageSequence = new AtomicLong();
+    private final Handshake handshake;
+    private final CryptoSession meshCrypto;
+    private final DeliveryQueue deliveryQueue;
+    private final MeshRelay relay;
+    private final NeighborTable neighbors = new NeighborTable();
+    private final RouteTable routes;
+    private final UnicastRouter router;
+    private final AtomicBoolean routeUpdatePending = new AtomicBoolean();
+    private final LongAdder compressedMessages = new LongAdder();
+    private final LongAdder compressionSaved = new LongAdder();
+    private final OutboxLog outbox;
+    private final BulkTransfer transfers;
+    private final Object outboxLock = new Object();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder summaries = new LongAdder();
+    private final LongAdder reconciliations = new LongAdder();
+    private final LongAdder reconcileFallbacks = new LongAdder();
+    private final LongAdder duplicateLinks = new LongAdder();
+    private final LongAdder linkAuthFailures = new LongAdder();
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Histogram handshakeMicros = new Histogram();
+    private final Histogram encryptNanos = new Histogram();
+    private final Histogram decryptNanos = new Histogram();
+    private final Histogram latencyMillis = new Histogram();
+    private volatile ForwardingMode forwarding = MeshConfig.FORWARDING;
+    private ByteBuffer plaintext = ByteBuffer.allocate(1024);
+    private volatile TransportServer server;
+    private volatile boolean running = true;
+
+    public MeshNode(long nodeId, Transport transport, MessageListener listener) throws GeneralSecurityException {
+        this(nodeId, transport, listener, null);
+    }
+
+    public MeshNode(long nodeId, Transport transport, MessageListener listener, OutboxLog outbox)
+            throws GeneralSecurityException {
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.listener = listener;
+        this.outbox = outbox;
+        // Replayed frames must still be recognised as duplicates when they come back.
+        this.seenMessages = new DedupCache(SEEN_MESSAGES_CAPACITY,
+                outbox != null ? Math.max(SEEN_MESSAGES_WINDOW_MS, MeshConfig.OUTBOX_TTL_MS) : SEEN_MESSAGES_WINDOW_MS);
+        this.runtime = new ConnectionRuntime(MeshConfig.MAX_LINKS);
+        int capabilities = (MeshConfig.COMPRESSION ? LinkSession.CAP_COMPRESSION : 0)
+                | (outbox != null ? LinkSession.CAP_RECONCILE : 0);
+        this.handshake = new Handshake(nodeId, capabilities, deriveMeshKey(MeshConfig.MESH_SECRET, "bluemesh link auth key", 32),
+                new SessionTicketCache(MeshConfig.TICKET_CAPACITY, MeshConfig.TICKET_TTL_MS));
+        this.meshCrypto = new CryptoSession(deriveMeshKey(MeshConfig.MESH_SECRET, "bluemesh payload key", 16));
+        if (listener != null) {
+            deliveryQueue = new DeliveryQueue(MeshConfig.DELIVERY_QUEUE_CAPACITY, this::deliver);
+            runtime.submit("delivery", deliveryQueue::run);
+        } else {
+            deliveryQueue = null;
+        }
+        this.relay = new MeshRelay(seenMessages, links.values(), deliveryQueue,
+                forwarding.create(new Random(), runtime, neighbors));
+        this.routes = new RouteTable(nodeId, MeshConfig.ROUTE_EXPIRY_MS);
+        this.router = new UnicastRouter(nodeId, routes, relay, deliveryQueue);
+        this.transfers = listener == null ? null : new BulkTransfer(this::sendBulk, runtime::submit, runtime, listener,
+                Paths.get(MeshConfig.TRANSFER_DIR, Long.toHexString(nodeId)), MeshConfig.TRANSFER_CHUNK_BYTES,
+                MeshConfig.TRANSFER_WINDOW, MeshConfig.TRANSFER_RTO_MS, MeshConfig.TRANSFER_TIMEOUT_MS,
+                MeshConfig.TRANSFER_MAX_BYTES, MeshConfig.TRANSFER_MAX_INCOMING);
+        runtime.schedule(this::advertiseRoutesPeriodically, MeshConfig.ROUTE_INTERVAL_MS);
+        metrics.register(this::collectMetrics);
+        if (outbox != null) {
+            relay.setArchive(this::archive, outboxLock);
+            runtime.schedule(this::flushOutboxPeriodically, MeshConfig.OUTBOX_FLUSH_MS);
+        }
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public ConnectionRuntime getRuntime() {
+        return runtime;
+    }
+
+    public MeshRelay getRelay() {
+        return relay;
+    }
+
+    public RouteTable getRoutes() {
+        return routes;
+    }
+
+    public ForwardingMode getForwarding() {
+        return forwarding;
+    }
+
+    public void setForwarding(ForwardingMode mode) {
+        forwarding = mode;
+        relay.setStrategy(mode.create(new Random(), runtime, neighbors));
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public Histogram getLatency() {
+        return latencyMillis;
+    }
+
+    public BulkTransfer getTransfers() {
+        return transfers;
+    }
+
+    public OutboxLog getOutbox() {
+        return outbox;
+    }
+
+    public Map<String, PeerLink> getLinks() {
+        return links;
+    }
+
+    public String getListenAddress() {
+        TransportServer current = server;
+        return current != null ? current.getLocalAddress() : null;
+    }
+
+    public boolean listen() {
+        try {
+            TransportServer opened = transport.listen();
+            server = opened;
+            runtime.register(opened);
+            return runtime.submit("acceptor", () -> {
+                while (running) {
+                    try {
+                        TransportChannel channel = opened.accept();
+                        startHandshake(channel, false, null);
+                    } catch (IOException e) {
+                        if (running && !runtime.isShutdown()) Log.warn("Server connection error: %s", e.getMessage());
+                        if (runtime.isShutdown()) break;
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.error("Server setup failed: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    public boolean connect(String address) {
+        try {
+            return startHandshake(transport.connect(address), true, null);
+        } catch (IOException e) {
+            Log.warn("Client connection error: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    // Dials in the background; the future completes once the link is up
+    // (or turned out to duplicate an existing one) and fails otherwise,
+    // with a TimeoutException after timeoutMillis. A link that comes up
+    // after the deadline is dropped rather than left running unreported.
+    public CompletableFuture<PeerLink> dial(String address, long timeoutMillis) {
+        CompletableFuture<PeerLink> result = new CompletableFuture<PeerLink>()
+                .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        boolean submitted = runtime.submit("dial-" + address, () -> {
+            try {
+                if (result.isDone()) {
+                    return;
+                }
+                if (!startHandshake(transport.connect(address), true, result)) {
+                    result.completeExceptionally(new IOException("No free link slot"));
+                }
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        if (!submitted) {
+            result.completeExceptionally(new IOException("Node is shut down"));
+        }
+        return result;
+    }
+
+    public boolean isLinkedTo(long remoteNodeId) {
+        return findLink(remoteNodeId) != null;
+    }
+
+    public NeighborTable getNeighbors() {
+        return neighbors;
+    }
+
+    public long getDuplicateLinks() {
+        return duplicateLinks.sum();
+    }
+
+    public long send(String message) throws GeneralSecurityException {
+        long msgId = nextMessageId();
+        byte[] frame = encodeMessage(Frame.TYPE_DATA, msgId, 0, message);
+        if (outbox == null) {
+            relay.originate(frame, nodeId, msgId);
+        } else {
+            synchronized (outboxLock) {
+                relay.originate(frame, nodeId, msgId);
+            }
+        }
+        return msgId;
+    }
+
+    public long sendDirect(long destination, String message) throws GeneralSecurityException {
+        long msgId = nextMessageId();
+        byte[] frame = encodeMessage(Frame.TYPE_DIRECT, msgId, destination, message);
+        if (outbox == null) {
+            router.send(frame, nodeId, msgId);
+        } else {
+            synchronized (outboxLock) {
+                router.send(frame, nodeId, msgId);
+            }
+        }
+        return msgId;
+    }
+
+    // Sends a file to one node in chunks; see BulkTransfer. Relay-only nodes cannot.
+    public CompletableFuture<Void> sendFile(long destination, Path file) throws IOException {
+        if (transfers == null) {
+            throw new IOException("Relay-only nodes do not transfer files");
+        }
+        return transfers.send(destination, file);
+    }
+
+    // Transfer messages wait for a route rather than being flooded, and are
+    // not logged to the outbox: the transfer resends what goes missing.
+    private boolean sendBulk(long destination, ByteBuffer body) {
+        if (routes.nextHop(destination) == null) {
+            return false;
+        }
+        long msgId = nextMessageId();
+        int payloadLength = UnicastRouter.DESTINATION_SIZE + CryptoSession.sealedSize(body.remaining());
+        byte[] frame = new byte[Frame.HEADER_SIZE + payloadLength];
+        ByteBuffer out = ByteBuffer.wrap(frame);
+        FrameCodec.writeHeader(out, Frame.TYPE_BULK, (byte) 0, 0, MeshConfig.TTL, nodeId, msgId, payloadLength);
+        out.putLong(destination);
+        try {
+            long start = System.nanoTime();
+            meshCrypto.encrypt(Frame.TYPE_BULK, (byte) 0, nodeId, msgId, destination, body, out);
+            encryptNanos.record(System.nanoTime() - start);
+        } catch (GeneralSecurityException e) {
+            Log.error("Encryption error: %s", e.getMessage());
+            return false;
+        }
+        return router.send(frame, nodeId, msgId);
+    }
+
+    private byte[] encodeMessage(byte type, long msgId, long destination, String message) throws GeneralSecurityException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = body.length;
+        byte flags = 0;
+        if (canCompress()) {
+            byte[] packed = new byte[body.length];
+            int packedLength = PayloadCompressor.compress(body, 0, body.length, packed);
+            if (packedLength > 0) {
+                compressedMessages.increment();
+                compressionSaved.add(body.length - packedLength);
+                body = packed;
+                bodyLength = packedLength;
+                flags = Frame.FLAG_COMPRESSED;
+            }
+        }
+        int prefix = type == Frame.TYPE_DIRECT ? UnicastRouter.DESTINATION_SIZE : 0;
+        int payloadLength = prefix + CryptoSession.sealedSize(bodyLength);
+        byte[] frame = new byte[Frame.HEADER_SIZE + payloadLength];
+        ByteBuffer out = ByteBuffer.wrap(frame);
+        FrameCodec.writeHeader(out, type, flags, 0, MeshConfig.TTL, nodeId, msgId, payloadLength);
+        if (prefix > 0) {
+            out.putLong(destination);
+        }
+        long start = System.nanoTime();
+        meshCrypto.encrypt(type, flags, nodeId, msgId, prefix > 0 ? destination : 0,
+                ByteBuffer.wrap(body, 0, bodyLength), out);
+        encryptNanos.record(System.nanoTime() - start);
+        return frame;
+    }
+
+    // Relays forward payloads untouched, so only compress when every current
+    // peer negotiated support for it.
+    private boolean canCompress() {
+        if (!MeshConfig.COMPRESSION) {
+            return false;
+        }
+        for (PeerLink link : links.values()) {
+            if ((link.getSession().getRemoteCapabilities() & LinkSession.CAP_COMPRESSION) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long nextMessageId() {
+        long floor = System.currentTimeMillis() << MESSAGE_ID_TIME_SHIFT;
+        while (true) {
+            long previous = messageSequence.get();
+            long next = Math.max(previous + 1, floor);
+            if (messageSequence.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        runtime.shutdown(MeshConfig.SHUTDOWN_TIMEOUT_MS);
+        if (outbox != null) {
+            saveCursors();
+            outbox.close();
+        }
+        Log.flush(MeshConfig.SHUTDOWN_TIMEOUT_MS);
+    }
+
+    public void printStats(PrintStream out) {
+        out.println(String.format("Node %x on %s: %d peers (%d slots free, %d tasks on %s threads)", nodeId,
+                transport.getName(), links.size(), runtime.getAvailableLinks(), runtime.getActiveTasks(),
+                runtime.isVirtualThreads() ? "virtual" : "pooled"));
+        for (PeerLink link : links.values()) {
+            out.println("  " + link);
+        }
+        out.println("Relay: " + relay + " forwarding=" + forwarding.name().toLowerCase());
+        out.println("Unicast: " + router);
+        out.println("Compression: " + (MeshConfig.COMPRESSION ? "on" : "off") + " compressed=" + compressedMessages.sum()
+                + " bytesSaved=" + compressionSaved.sum());
+        out.println("Sessions: " + handshake.getTickets() + " handshake(us) " + handshakeMicros);
+        out.println("Latency(ms): " + latencyMillis);
+        if (outbox != null) {
+            out.println("Outbox: " + outbox + " replayed=" + replayed.sum() + " summaries=" + summaries.sum()
+                    + " reconciled=" + reconciliations.sum() + " fallbacks=" + reconcileFallbacks.sum());
+        }
+        if (transfers != null) {
+            out.println("Transfers: " + transfers);
+        }
+        if (deliveryQueue != null) {
+            out.println("Delivery: queue=" + deliveryQueue.getDepth() + " delivered=" + deliveryQueue.getDelivered()
+                    + " dropped=" + deliveryQueue.getDropped());
+        }
+    }
+
+    private void collectMetrics(MetricsRegistry.Sink sink) {
+        sink.counter("bluemesh_relay_received_total", "Broadcast frames received", null, relay.getReceived());
+        sink.counter("bluemesh_relay_duplicates_total", "Broadcast frames dropped as duplicates", null, relay.getDuplicates());
+        sink.counter("bluemesh_relay_forwarded_total", "Frames forwarded to peers", null, relay.getForwarded());
+        sink.counter("bluemesh_relay_suppressed_total", "Transmissions saved by the forwarding strategy", null,
+                relay.getSuppressed());
+        sink.counter("bluemesh_relay_ttl_expired_total", "Frames not forwarded because their TTL ran out", null,
+                relay.getExpired() + router.getExpired());
+        sink.histogram("bluemesh_relay_fanout", "Peers reached per broadcast fan-out", null, relay.getFanout());
+        long hits = seenMessages.getHits();
+        long lookups = hits + seenMessages.getMisses();
+        sink.gauge("bluemesh_dedup_hit_ratio", "Share of dedup lookups that found a known id", null,
+                lookups == 0 ? 0 : (double) hits / lookups);
+        sink.gauge("bluemesh_dedup_entries", "Ids held by the dedup cache", null, seenMessages.size());
+        sink.counter("bluemesh_unicast_routed_total", "Direct frames sent along a route", null, router.getRouted());
+        sink.counter("bluemesh_unicast_fallbacks_total", "Direct frames broadcast for lack of a route", null,
+                router.getFallbacks());
+        sink.histogram("bluemesh_handshake_microseconds", "Link handshake duration", null, handshakeMicros);
+        sink.histogram("bluemesh_encrypt_nanoseconds", "Payload encryption time", null, encryptNanos);
+        sink.histogram("bluemesh_decrypt_nanoseconds", "Payload decryption time", null, decryptNanos);
+        sink.histogram("bluemesh_delivery_latency_milliseconds", "Send to local delivery, by the sender's clock", null,
+                latencyMillis);
+        if (deliveryQueue != null) {
+            sink.gauge("bluemesh_delivery_queue_depth", "Frames waiting for local delivery", null, deliveryQueue.getDepth());
+            sink.counter("bluemesh_delivery_dropped_total", "Frames dropped by a full delivery queue", null,
+                    deliveryQueue.getDropped());
+        }
+        sink.counter("bluemesh_compressed_messages_total", "Payloads sent compressed", null, compressedMessages.sum());
+        sink.counter("bluemesh_compression_saved_bytes_total", "Bytes saved by payload compression", null,
+                compressionSaved.sum());
+        if (outbox != null) {
+            sink.gauge("bluemesh_outbox_segments", "Outbox segment files", null, outbox.getSegmentCount());
+            sink.counter("bluemesh_outbox_replayed_total", "Frames replayed from the outbox", null, replayed.sum());
+            sink.counter("bluemesh_outbox_reconciled_total", "Frames sent by summary reconciliation", null,
+                    reconciliations.sum());
+        }
+        if (transfers != null) {
+            sink.gauge("bluemesh_transfers_active", "File transfers in progress", "direction=\"out\"", transfers.getSending());
+            sink.gauge("bluemesh_transfers_active", "File transfers in progress", "direction=\"in\"", transfers.getReceiving());
+            sink.counter("bluemesh_transfer_chunks_sent_total", "File chunks sent, including resends", null,
+                    transfers.getChunksSent());
+            sink.counter("bluemesh_transfer_retransmits_total", "File chunks resent after a timeout", null,
+                    transfers.getRetransmits());
+            sink.counter("bluemesh_transfer_chunks_received_total", "File chunks received and verified", null,
+                    transfers.getChunksReceived());
+            sink.counter("bluemesh_transfer_hash_failures_total", "File chunks that failed verification", null,
+                    transfers.getHashFailures());
+            sink.counter("bluemesh_transfer_refused_total", "Incoming files refused for size or concurrency", null,
+                    transfers.getRefused());
+            sink.counter("bluemesh_transfer_abandoned_total", "Incoming files dropped after the transfer timeout", null,
+                    transfers.getAbandoned());
+        }
+        sink.gauge("bluemesh_links", "Connected peers", null, links.size());
+        sink.counter("bluemesh_link_auth_failures_total", "Link frames that failed authentication", null,
+                linkAuthFailures.sum());
+        sink.counter("bluemesh_log_dropped_total", "Log records dropped by a full log queue", null, Log.getDropped());
+        for (PeerLink link : links.values()) {
+            String peer = "peer=\"" + Long.toHexString(link.getSession().getRemoteNodeId()) + "\"";
+            sink.counter("bluemesh_peer_frames_sent_total", "Frames written to the peer", peer, link.getSent());
+            sink.counter("bluemesh_peer_bytes_sent_total", "Bytes written to the peer", peer, link.getBytesSent());
+            sink.counter("bluemesh_peer_frames_received_total", "Frames read from the peer", peer, link.getReceived());
+            sink.counter("bluemesh_peer_bytes_received_total", "Bytes read from the peer", peer, link.getBytesReceived());
+            sink.counter("bluemesh_peer_dropped_total", "Frames dropped by the peer's full queue", peer, link.getDropped());
+            sink.gauge("bluemesh_peer_queue_depth", "Frames queued for the peer", peer, link.getQueueDepth());
+        }
+    }
+
+    private boolean startHandshake(TransportChannel channel, boolean outbound, CompletableFuture<PeerLink> result) {
+        if (!runtime.tryReserveLink()) {
+            Log.warn("Rejecting %s: link limit of %d reached", channel.getRemoteName(), MeshConfig.MAX_LINKS);
+            closeQuietly(channel);
+            return false;
+        }
+        if (!runtime.submit("handshake-" + channel.getRemoteAddress(), () -> handleNewConnection(channel, outbound, result))) {
+            runtime.releaseLink();
+            closeQuietly(channel);
+            return false;
+        }
+        return true;
+    }
+
+    private void handleNewConnection(TransportChannel channel, boolean outbound, CompletableFuture<PeerLink> result) {
+        String address = channel.getRemoteAddress();
+        String name = channel.getRemoteName();
+        boolean established = false;
+        try {
+            DataInputStream input = new DataInputStream(channel.getInputStream());
+            DataOutputStream output = new DataOutputStream(channel.getOutputStream());
+
+            LinkSession session = handshake.perform(address, outbound, input, output);
+            handshakeMicros.record(session.getSetupNanos() / 1000);
+            Log.info("Secure link with %s (node %x) %s in %.1f ms", name,
+                    session.getRemoteNodeId(), session.isResumed() ? "resumed" : "established", session.getSetupMillis());
+
+            PeerLink link = new PeerLink(name, session, () -> {
+                input.close();
+                channel.close();
+            }, output, MeshConfig.QUEUE_CAPACITY, MeshConfig.QUEUE_OVERFLOW);
+            link.setOutbound(outbound);
+            long remoteNodeId = session.getRemoteNodeId();
+            if (remoteNodeId == nodeId) {
+                Log.warn("Dropping link with %s: it is this node", name);
+                return;
+            }
+            PeerLink previous;
+            PeerLink duplicate;
+            synchronized (links) {
+                duplicate = findLink(remoteNodeId);
+                // A second link in the same direction never replaces a live one.
+                // Both ends dialed at once: each keeps the link the lower node id dialed.
+                if (duplicate != null && (duplicate.isOutbound() == outbound || outbound != nodeId < remoteNodeId)) {
+                    duplicateLinks.increment();
+                    if (result != null) {
+                        result.complete(duplicate);
+                    }
+                    return;
+                }
+                if (result != null && result.isDone()) {
+                    Log.info("Dropping link with %s: the dial timed out", name);
+                    return;
+                }
+                previous = links.put(address, link);
+            }
+            if (previous != null) {
+                previous.close();
+            }
+            if (duplicate != null && duplicate != previous) {
+                duplicateLinks.increment();
+                duplicate.close();
+            }
+            runtime.register(link);
+            neighbors.update(link, session.getRemoteNodeId(), new long[0]);
+            routes.addNeighbor(link, session.getRemoteNodeId());
+            established = true;
+
+            // A rejected task would leave the link registered but never
+            // drained; drop it instead. Once the reader runs, its exit does
+            // the cleanup, so later failures only close the link.
+            if (!runtime.submit("writer-" + address, link::runWriter)
+                    || !runtime.submit("reader-" + address, () -> readFrames(address, name, input, link))) {
+                cleanupLink(address, link);
+                return;
+            }
+            if (outbox != null) {
+                if ((session.getRemoteCapabilities() & LinkSession.CAP_RECONCILE) != 0) {
+                    synchronized (outboxLock) {
+                        link.setReplaying(true);
+                    }
+                    sendSummary(link, MeshConfig.RECONCILE_CELLS);
+                } else if (!runtime.submit("replay-" + address, () -> replayOutbox(link))) {
+                    link.close();
+                    return;
+                }
+            }
+            // The deadline can still pass between registering and here.
+            if (result != null && !result.complete(link)) {
+                link.close();
+                return;
+            }
+            announceNeighbors();
+            triggerRouteUpdate();
+        } catch (EOFException e) {
+            // Typically the peer is at its link limit and closed before answering.
+            Log.info("%s closed the link during setup", name);
+        } catch (IOException e) {
+            Log.warn("Connection setup error with %s: %s", name, e.getMessage());
+        } catch (GeneralSecurityException e) {
+            Log.warn("Security error with %s: %s", name, e.getMessage());
+        } finally {
+            if (result != null && !result.isDone()) {
+                result.completeExceptionally(new IOException("Link setup with " + name + " failed"));
+            }
+            if (!established) {
+                runtime.releaseLink();
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void readFrames(String address, String name, DataInputStream input, PeerLink link) {
+        try {
+            Frame frame = new Frame();
+            while (running) {
+                FrameCodec.readFrame(input, frame);
+                link.recordReceived(frame.getEncodedLength());
+                handleFrame(frame, link);
+            }
+        } catch (EOFException e) {
+            // The peer closed the link: a normal disconnect, logged by cleanupLink.
+        } catch (IOException e) {
+            if (running && !link.isClosed()) Log.warn("Communication error with %s: %s", name, e.getMessage());
+        } finally {
+            cleanupLink(address, link);
+        }
+    }
+
+    private PeerLink findLink(long remoteNodeId) {
+        for (PeerLink link : links.values()) {
+            if (!link.isClosed() && link.getSession().getRemoteNodeId() == remoteNodeId) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    private void handleFrame(Frame frame, PeerLink sender) {
+        switch (frame.getType()) {
+            case Frame.TYPE_DATA:
+                routes.learn(frame.getIdHigh(), sender, frame.getHops() + 1);
+                if (outbox == null) {
+                    relay.relay(frame, sender);
+                } else {
+                    synchronized (outboxLock) {
+                        relay.relay(frame, sender);
+                    }
+                }
+                break;
+            case Frame.TYPE_DIRECT:
+            case Frame.TYPE_BULK:
+                routes.learn(frame.getIdHigh(), sender, frame.getHops() + 1);
+                if (outbox == null) {
+                    router.route(frame, sender);
+                } else {
+                    synchronized (outboxLock) {
+                        router.route(frame, sender);
+                    }
+                }
+                break;
+            case Frame.TYPE_NEIGHBORS: {
+                ByteBuffer neighborIds = openLinkFrame(frame, sender);
+                if (neighborIds != null) {
+                    handleNeighbors(neighborIds, sender);
+                }
+                break;
+            }
+            case Frame.TYPE_SUMMARY:
+                if (outbox != null) {
+                    ByteBuffer opened = openLinkFrame(frame, sender);
+                    if (opened == null) {
+                        break;
+                    }
+                    byte[] summary = Arrays.copyOf(opened.array(), opened.limit());
+                    // The link is replaying until reconcile() finishes, which
+                    // holds its mark; without a task to clear that, fall back
+                    // to a cursor replay or give the link up.
+                    if (!runtime.submit("reconcile-" + sender.getName(), () -> reconcile(summary, sender))
+                            && !runtime.submit("replay-" + sender.getName(), () -> replayOutbox(sender))) {
+                        synchronized (outboxLock) {
+                            sender.setReplaying(false);
+                        }
+                        sender.close();
+                    }
+                }
+                break;
+            case Frame.TYPE_ROUTES: {
+                ByteBuffer advertisement = openLinkFrame(frame, sender);
+                if (advertisement != null && routes.applyAdvertisement(sender, advertisement)) {
+                    triggerRouteUpdate();
+                }
+                break;
+            }
+            default:
+                Log.warn("Invalid message type %d from %s", frame.getType(), sender.getName());
+        }
+    }
+
+    // Link frames travel a single hop, so they are sealed with the link's own
+    // keys rather than the mesh key: only the peer that finished the handshake
+    // can announce neighbors, advertise routes or start a reconciliation.
+    private byte[] encodeLinkFrame(PeerLink link, byte type, ByteBuffer payload) {
+        long msgId = nextMessageId();
+        int payloadLength = CryptoSession.sealedSize(payload.remaining());
+        byte[] frame = new byte[Frame.HEADER_SIZE + payloadLength];
+        ByteBuffer out = ByteBuffer.wrap(frame);
+        FrameCodec.writeHeader(out, type, (byte) 0, 0, 1, nodeId, msgId, payloadLength);
+        try {
+            link.getSession().getSendCrypto().encrypt(type, (byte) 0, nodeId, msgId, 0, payload, out);
+        } catch (GeneralSecurityException e) {
+            Log.error("Link encryption error: %s", e.getMessage());
+            return null;
+        }
+        return frame;
+    }
+
+    // A link frame that fails to open was forged or altered on the link, so
+    // the link is dropped rather than trusted for anything else.
+    private ByteBuffer openLinkFrame(Frame frame, PeerLink sender) {
+        ByteBuffer sealed = frame.payload();
+        ByteBuffer plaintext = ByteBuffer.allocate(Math.max(0, CryptoSession.openedSize(sealed.remaining())));
+        try {
+            sender.getSession().getReceiveCrypto().decrypt(frame.getType(), frame.getFlags(), frame.getIdHigh(),
+                    frame.getIdLow(), 0, sealed, plaintext);
+        } catch (GeneralSecurityException e) {
+            linkAuthFailures.increment();
+            Log.warn("Dropping link with %s: link frame failed authentication", sender.getName());
+            sender.close();
+            return null;
+        }
+        plaintext.flip();
+        return plaintext;
+    }
+
+    private void handleNeighbors(ByteBuffer payload, PeerLink sender) {
+        if (payload.remaining() % 8 != 0) {
+            Log.warn("Malformed neighbor list from %s", sender.getName());
+            return;
+        }
+        long[] ids = new long[payload.remaining() / 8];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = payload.getLong();
+        }
+        neighbors.update(sender, sender.getSession().getRemoteNodeId(), ids);
+    }
+
+    // Neighbor hello: tells every peer which nodes this one is linked to. It
+    // travels a single hop and is sent whenever the link set changes.
+    private void announceNeighbors() {
+        ByteBuffer ids = ByteBuffer.allocate(links.size() * 8);
+        for (PeerLink link : links.values()) {
+            if (ids.remaining() >= 8) ids.putLong(link.getSession().getRemoteNodeId());
+        }
+        ids.flip();
+        for (PeerLink link : links.values()) {
+            byte[] frame = encodeLinkFrame(link, Frame.TYPE_NEIGHBORS, ids.duplicate());
+            if (frame != null) {
+                link.enqueue(frame);
+            }
+        }
+    }
+
+    private void deliver(Frame frame) {
+        try {
+            byte type = frame.getType();
+            ByteBuffer sealed = frame.payload();
+            long destination = 0;
+            if (type != Frame.TYPE_DATA) {
+                destination = sealed.getLong();
+            }
+            int needed = CryptoSession.openedSize(sealed.remaining());
+            if (plaintext.capacity() < needed) {
+                plaintext = ByteBuffer.allocate(Math.max(needed, plaintext.capacity() * 2));
+            }
+            plaintext.clear();
+            long start = System.nanoTime();
+            int length = meshCrypto.decrypt(type, frame.getFlags(), frame.getIdHigh(), frame.getIdLow(), destination,
+                    sealed, plaintext);
+            decryptNanos.record(System.nanoTime() - start);
+            if (type == Frame.TYPE_BULK) {
+                transfers.receive(frame.getIdHigh(), ByteBuffer.wrap(plaintext.array(), 0, length));
+                return;
+            }
+            // Only meaningful as far as the sender's clock agrees with this one.
+            long latency = System.currentTimeMillis() - (frame.getIdLow() >>> MESSAGE_ID_TIME_SHIFT);
+            if (latency >= 0 && latency < MAX_PLAUSIBLE_LATENCY_MS) {
+                latencyMillis.record(latency);
+            }
+            String message;
+            if ((frame.getFlags() & Frame.FLAG_COMPRESSED) != 0) {
+                message = new String(PayloadCompressor.decompress(plaintext.array(), 0, length), StandardCharsets.UTF_8);
+            } else {
+                message = new String(plaintext.array(), 0, length, StandardCharsets.UTF_8);
+            }
+            if (type == Frame.TYPE_DIRECT) {
+                listener.onDirectMessage(frame.getIdHigh(), frame.getIdLow(), message);
+            } else {
+                listener.onMessage(frame.getIdHigh(), frame.getIdLow(), message);
+            }
+        } catch (GeneralSecurityException e) {
+            Log.warn("Decryption error: %s", e.getMessage());
+        } catch (DataFormatException e) {
+            Log.warn("Decompression error: %s", e.getMessage());
+        }
+    }
+
+    private void advertiseRoutesPeriodically() {
+        if (!running) {
+            return;
+        }
+        advertiseRoutes();
+        runtime.schedule(this::advertiseRoutesPeriodically, MeshConfig.ROUTE_INTERVAL_MS);
+    }
+
+    // Changes are batched briefly so a burst of updates costs one advertisement.
+    private void triggerRouteUpdate() {
+        if (routeUpdatePending.compareAndSet(false, true)) {
+            runtime.schedule(() -> {
+                routeUpdatePending.set(false);
+                advertiseRoutes();
+            }, TRIGGERED_UPDATE_DELAY_MS);
+        }
+    }
+
+    private void advertiseRoutes() {
+        for (PeerLink link : links.values()) {
+            byte[] frame = encodeLinkFrame(link, Frame.TYPE_ROUTES, ByteBuffer.wrap(routes.encodeAdvertisement(link)));
+            if (frame != null) {
+                link.enqueue(frame);
+            }
+        }
+    }
+
+    // Called once the frame has been queued to its links, so the marks set
+    // here never pass a frame that has not been queued yet.
+    private boolean archive(byte[] frame) {
+        if (frame[Frame.OFFSET_TYPE] == Frame.TYPE_BULK) {
+            return false;
+        }
+        synchronized (outboxLock) {
+            try {
+                if (outbox.append(frame) < 0) {
+                    return false;
+                }
+            } catch (IOException e) {
+                Log.error("Outbox write failed: %s", e.getMessage());
+                return false;
+            }
+            markLinks();
+            return true;
+        }
+    }
+
+    private void markLinks() {
+        long end = outbox.getEnd();
+        for (PeerLink link : links.values()) {
+            if (!link.isReplaying()) {
+                link.setLogMark(end);
+            }
+        }
+    }
+
+    // Sends the peer what it missed since its cursor, paced by its queue so
+    // the backlog is not dropped on overflow. Frames the peer originated are
+    // skipped; anything else it already has is dropped by its dedup cache.
+    private void replayOutbox(PeerLink link) {
+        long peer = link.getSession().getRemoteNodeId();
+        long position;
+        long end;
+        synchronized (outboxLock) {
+            link.setReplaying(true);
+            position = outbox.getCursor(peer);
+            end = outbox.getEnd();
+        }
+        List<byte[]> batch = new ArrayList<>(REPLAY_BATCH);
+        try {
+            while (position < end && awaitQueueRoom(link)) {
+                batch.clear();
+                long next = outbox.read(position, end, REPLAY_BATCH, batch::add);
+                if (next == position) {
+                    break;
+                }
+                position = next;
+                for (byte[] frame : batch) {
+                    if (ByteBuffer.wrap(frame).getLong(Frame.OFFSET_ID_HIGH) != peer && link.enqueue(frame)) {
+                        replayed.increment();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (outboxLock) {
+                if (position >= end) {
+                    link.replayedTo(outbox.getEnd());
+                }
+                link.setReplaying(false);
+            }
+        }
+    }
+
+    // Summary of the message ids in this outbox. Only the difference between
+    // the two ends has to fit, so it starts small and grows on failure.
+    private void sendSummary(PeerLink link, int cells) {
+        Iblt table = new Iblt(cells);
+        int size = outbox.forEach((position, idHigh, idLow) -> table.add(idHigh, idLow));
+        ByteBuffer payload = ByteBuffer.allocate(8 + table.getCells() * Iblt.CELL_SIZE);
+        payload.putInt(size).putInt(table.getCells());
+        table.write(payload);
+        payload.flip();
+        byte[] frame = encodeLinkFrame(link, Frame.TYPE_SUMMARY, payload);
+        if (frame != null) {
+            link.enqueue(frame);
+            summaries.increment();
+        }
+    }
+
+    // Both ends decode the same difference. Each sends the frames only it
+    // has; if the table was too small both retry with a larger one, and past
+    // the size limit fall back to a cursor replay.
+    private void reconcile(byte[] summary, PeerLink link) {
+        Iblt difference;
+        int peerSize;
+        int size;
+        try {
+            ByteBuffer payload = ByteBuffer.wrap(summary);
+            peerSize = payload.getInt();
+            Iblt remote = Iblt.read(payload, payload.getInt(), MeshConfig.RECONCILE_MAX_CELLS);
+            difference = new Iblt(remote.getCells());
+            size = outbox.forEach((position, idHigh, idLow) -> difference.add(idHigh, idLow));
+            difference.subtract(remote);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            Log.warn("Malformed summary from %s", link.getName());
+            reconcileFallbacks.increment();
+            replayOutbox(link);
+            return;
+        }
+        synchronized (outboxLock) {
+            link.setReplaying(true);
+        }
+        Set<Long> missing = new HashSet<>();
+        if (!difference.decode((idHigh, idLow) -> missing.add(Iblt.checksum(idHigh, idLow)), (idHigh, idLow) -> { })) {
+            int cells = difference.getCells();
+            if (cells < MeshConfig.RECONCILE_MAX_CELLS) {
+                sendSummary(link, Math.min(MeshConfig.RECONCILE_MAX_CELLS, Math.max(cells * 4, Math.abs(size - peerSize) * 2)));
+            } else {
+                reconcileFallbacks.increment();
+                replayOutbox(link);
+            }
+            return;
+        }
+        List<Long> positions = new ArrayList<>();
+        outbox.forEach((position, idHigh, idLow) -> {
+            if (missing.contains(Iblt.checksum(idHigh, idLow))) positions.add(position);
+        });
+        boolean complete = true;
+        try {
+            for (long position : positions) {
+                if (!awaitQueueRoom(link)) {
+                    complete = false;
+                    break;
+                }
+                byte[] frame = outbox.get(position);
+                if (frame != null && link.enqueue(frame)) {
+                    replayed.increment();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            complete = false;
+        }
+        synchronized (outboxLock) {
+            if (complete) {
+                link.replayedTo(outbox.getEnd());
+            }
+            link.setReplaying(false);
+        }
+        reconciliations.increment();
+    }
+
+    // Keeps a backlog from overflowing the peer's queue. False once the link is gone.
+    private boolean awaitQueueRoom(PeerLink link) throws InterruptedException {
+        while (running && !link.isClosed() && link.getQueueDepth() > link.getQueueCapacity() / 2) {
+            Thread.sleep(REPLAY_BACKOFF_MS);
+        }
+        return running && !link.isClosed();
+    }
+
+    // Group commit: one sync per interval covers every append since the last.
+    // The timer only hands the flush to the pool, since it fsyncs. The next
+    // one is scheduled when it is done, so flushes never overlap.
+    private void flushOutboxPeriodically() {
+        if (!running) {
+            return;
+        }
+        if (!runtime.submit("outbox-flush", this::flushOutbox)) {
+            runtime.schedule(this::flushOutboxPeriodically, MeshConfig.OUTBOX_FLUSH_MS);
+        }
+    }
+
+    private void flushOutbox() {
+        try {
+            saveCursors();
+            outbox.flush();
+            replayFrozenLinks();
+        } finally {
+            runtime.schedule(this::flushOutboxPeriodically, MeshConfig.OUTBOX_FLUSH_MS);
+        }
+    }
+
+    // A link that dropped a queued frame gets the gap resent from its cursor,
+    // which saveCursors() has just left at the frame before the drop.
+    private void replayFrozenLinks() {
+        for (PeerLink link : links.values()) {
+            synchronized (outboxLock) {
+                if (!link.isMarksFrozen() || link.isReplaying() || link.isClosed()) {
+                    continue;
+                }
+                link.setReplaying(true);
+            }
+            if (!runtime.submit("replay-" + link.getName(), () -> replayOutbox(link))) {
+                synchronized (outboxLock) {
+                    link.setReplaying(false);
+                }
+            }
+        }
+    }
+
+    private void saveCursors() {
+        for (PeerLink link : links.values()) {
+            saveCursor(link);
+        }
+    }
+
+    private void saveCursor(PeerLink link) {
+        long mark = link.getDrainedMark();
+        if (mark >= 0) {
+            outbox.setCursor(link.getSession().getRemoteNodeId(), mark);
+        }
+    }
+
+    private void cleanupLink(String address, PeerLink link) {
+        if (outbox != null) {
+            saveCursor(link);
+        }
+        boolean removed = links.remove(address, link);
+        neighbors.remove(link);
+        routes.removeNeighbor(link);
+        runtime.unregister(link);
+        link.close();
+        runtime.releaseLink();
+        if (running) {
+            Log.info("Disconnected: %s", link.getName());
+            if (removed) {
+                announceNeighbors();
+                triggerRouteUpdate();
+            }
+        }
+    }
+
+    private static byte[] deriveMeshKey(String secret, String info, int length) throws GeneralSecurityException {
+        if (secret == null || secret.isEmpty()) {
+            throw new GeneralSecurityException("No mesh secret: set -Dbluemesh.meshSecret");
+        }
+        return Hkdf.derive(PAYLOAD_KEY_SALT.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8),
+                info, length);
+    }
+
+    private static void closeQuietly(TransportChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+// Dedup-and-forward core. Everything here works on the frame header and the
+// raw encoded bytes: a new frame is handed to the forwarding strategy before
+// anything looks at the payload, and local delivery (if any) is just one
+// more sink that a separate consumer drains. Frames that have used up their
+// TTL are still delivered but not forwarded. Frames that may travel further
+// are also handed to the archive sink (the store-and-forward outbox), if set,
+// once they have been queued to the links they go out on: straight after the
+// fan-out, or after the decision for deferred strategies.
+final class MeshRelay {
+    private final DedupCache seen;
+    private final Collection<? extends FrameSink> links;
+    private final FrameSink delivery;
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private volatile ForwardingStrategy strategy;
+    private volatile FrameSink archive;
+    private volatile Object archiveLock = new Object();
+    private final Histogram fanout = new Histogram();
+
+    public MeshRelay(DedupCache seen, Collection<? extends FrameSink> links, FrameSink delivery) {
+        this(seen, links, delivery, new FloodStrategy());
+    }
+
+    public MeshRelay(DedupCache seen, Collection<? extends FrameSink> links, FrameSink delivery, ForwardingStrategy strategy) {
+        this.seen = seen;
+        this.links = links;
+        this.delivery = delivery;
+        this.strategy = strategy;
+    }
+
+    public void setStrategy(ForwardingStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public ForwardingStrategy getStrategy() {
+        return strategy;
+    }
+
+    // lock is the one the caller holds around relay() and originate().
+    public void setArchive(FrameSink archive, Object lock) {
+        this.archive = archive;
+        this.archiveLock = lock;
+    }
+
+    public boolean relay(Frame frame, FrameSink from) {
+        received.increment();
+        long idHigh = frame.getIdHigh();
+        long idLow = frame.getIdLow();
+        if (!seen.markSeen(idHigh, idLow)) {
+            duplicates.increment();
+            strategy.onDuplicate(idHigh, idLow, from);
+            return false;
+        }
+        byte[] encoded = frame.copyEncoded();
+        int hops = frame.getHops() + 1;
+        FrameCodec.setHops(encoded, hops);
+        if (hops < frame.getTtl()) {
+            ForwardingStrategy current = strategy;
+            current.onFirstCopy(this, encoded, idHigh, idLow, from);
+            if (!current.isDeferred()) {
+                archive(encoded);
+            }
+        } else {
+            expired.increment();
+        }
+        if (delivery != null) {
+            delivery.enqueue(encoded);
+        }
+        return true;
+    }
+
+    public int originate(byte[] encoded, long idHigh, long idLow) {
+        seen.markSeen(idHigh, idLow);
+        int sent = 0;
+        for (FrameSink link : links) {
+            if (link.enqueue(encoded)) {
+                sent++;
+            }
+        }
+        archive(encoded);
+        return sent;
+    }
+
+    void archive(byte[] encoded) {
+        FrameSink current = archive;
+        if (current != null) {
+            current.enqueue(encoded);
+        }
+    }
+
+    // Runs a deferred strategy's decision and then archives the frame, as one
+    // step under the archive lock like an immediate fan-out.
+    void forwardDeferred(byte[] encoded, Runnable decision) {
+        synchronized (archiveLock) {
+            decision.run();
+            archive(encoded);
+        }
+    }
+
+    // Fan-out helpers for forwarding strategies.
+    int forward(byte[] encoded, FrameSink from) {
+        int sent = 0;
+        for (FrameSink link : links) {
+            if (link != from && forwardTo(link, encoded)) {
+                sent++;
+            }
+        }
+        fanout.record(sent);
+        return sent;
+    }
+
+    boolean forwardTo(FrameSink link, byte[] encoded) {
+        if (link.enqueue(encoded)) {
+            forwarded.increment();
+            return true;
+        }
+        return false;
+    }
+
+    int countTargets(FrameSink from) {
+        int count = 0;
+        for (FrameSink link : links) {
+            if (link != from) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    void recordFanout(int sent) {
+        fanout.record(sent);
+    }
+
+    void recordSuppressed(int transmissions) {
+        suppressed.add(transmissions);
+    }
+
+    Collection<? extends FrameSink> getLinks() {
+        return links;
+    }
+
+    public boolean isRelayOnly() {
+        return delivery == null;
+    }
+
+    public DedupCache getSeen() {
+        return seen;
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public long getForwarded() {
+        return forwarded.sum();
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    // Links each broadcast fan-out reached.
+    public Histogram getFanout() {
+        return fanout;
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "received=" + getReceived() + " duplicates=" + getDuplicates() + " forwarded=" + getForwarded()
+                + " suppressed=" + getSuppressed() + " ttlExpired=" + getExpired() + " dedupEntries=" + seen.size()
+                + (isRelayOnly() ? " (relay only)" : "");
+    }
+}
@@ -0,0 +1,472 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Deterministic discrete-event simulator for the relay path. Every simulated
+// node runs the real MeshRelay and DedupCache against a virtual clock; links
+// model propagation latency, serialization at a fixed bandwidth, random loss
+// and a bounded transmit queue. Events are ordered by time and then by
+// scheduling order, and all randomness comes from the seed, so a run is
+// reproducible.
+// Usage: java MeshSimulator [topology=grid|geometric|cluster] [nodes=1000]
+//   [seed=1] [messages=100] [degree=6] [maxLinks=7] [latencyMs=15]
+//   [bandwidth=87500] [loss=0.01] [payload=128] [durationMs=10000]
+//   [forwarding=flood|gossip|counter|coverage] [ttl=64] [direct=false]
+// Strategy parameters come from the usual bluemesh.* system properties, and
+// neighbor tables are filled from the topology as if hellos had converged.
+// With direct=true every message is addressed to one random node and routed
+// over shortest-path routes, again as if route advertisements had converged.
+// Destinations bluemesh.route.maxMetric or more hops away get no route, and the
+// report counts how often routers fell back to flooding.
+public class MeshSimulator {
+    private final String topology;
+    private final int nodeCount;
+    private final long seed;
+    private final int messageCount;
+    private final double degree;
+    private final int maxLinks;
+    private final long latencyNanos;
+    private final long bandwidth;
+    private final double loss;
+    private final int payloadSize;
+    private final long durationNanos;
+    private final ForwardingMode forwarding;
+    private final int ttl;
+    private final boolean direct;
+    private final int queueCapacity = MeshConfig.QUEUE_CAPACITY;
+
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long scheduled;
+    private SimNode[] nodes;
+    private int linkCount;
+    private int[] component;
+    private int[] componentSize;
+
+    private long[] originTimes;
+    private int[] origins;
+    private int[] destinations;
+    private long[] latencies = new long[1024];
+    private int latencyCount;
+    private long deliveries;
+    private long transmissions;
+    private long lost;
+    private long queueDrops;
+    private long unroutable;
+
+    public MeshSimulator(Map<String, String> options) {
+        this.topology = options.getOrDefault("topology", "geometric");
+        this.nodeCount = Integer.parseInt(options.getOrDefault("nodes", "1000"));
+        this.seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        this.messageCount = Integer.parseInt(options.getOrDefault("messages", "100"));
+        this.degree = Double.parseDouble(options.getOrDefault("degree", "6"));
+        this.maxLinks = Integer.parseInt(options.getOrDefault("maxLinks", String.valueOf(MeshConfig.MAX_LINKS)));
+        this.latencyNanos = (long) (Double.parseDouble(options.getOrDefault("latencyMs", "15")) * 1_000_000L);
+        this.bandwidth = Long.parseLong(options.getOrDefault("bandwidth", "87500"));
+        this.loss = Double.parseDouble(options.getOrDefault("loss", "0.01"));
+        this.payloadSize = Integer.parseInt(options.getOrDefault("payload", "128"));
+        this.durationNanos = Long.parseLong(options.getOrDefault("durationMs", "10000")) * 1_000_000L;
+        this.forwarding = ForwardingMode.valueOf(options.getOrDefault("forwarding", "flood").toUpperCase());
+        this.ttl = Integer.parseInt(options.getOrDefault("ttl", String.valueOf(MeshConfig.TTL)));
+        this.direct = Boolean.parseBoolean(options.getOrDefault("direct", "false"));
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                System.err.println("Ignoring argument " + arg + " (expected key=value)");
+                continue;
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        MeshSimulator simulator = new MeshSimulator(options);
+        long start = System.nanoTime();
+        simulator.run();
+        simulator.report(System.nanoTime() - start);
+    }
+
+    public void run() {
+        buildTopology();
+        findComponents();
+        originTimes = new long[messageCount];
+        origins = new int[messageCount];
+        destinations = new int[messageCount];
+        for (int i = 0; i < messageCount; i++) {
+            Event event = new Event((long) (random.nextDouble() * durationNanos));
+            event.node = nodes[random.nextInt(nodeCount)];
+            event.message = i;
+            destinations[i] = (event.node.index + 1 + random.nextInt(nodeCount - 1)) % nodeCount;
+            schedule(event);
+        }
+        if (direct) {
+            buildRoutes();
+        }
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            now = event.time;
+            if (event.task != null) {
+                event.task.run();
+            } else if (event.via == null) {
+                originate(event.node, event.message);
+            } else {
+                SimNode node = event.via.to;
+                node.processed++;
+                Frame frame = Frame.wrap(event.frame);
+                if (frame.getType() == Frame.TYPE_DIRECT) {
+                    node.router.route(frame, event.via.reverse);
+                } else {
+                    node.relay.relay(frame, event.via.reverse);
+                }
+            }
+        }
+    }
+
+    private void originate(SimNode node, int message) {
+        originTimes[message] = now;
+        origins[message] = node.index;
+        long idHigh = node.index + 1;
+        long idLow = message + 1;
+        byte[] frame = new byte[Frame.HEADER_SIZE + payloadSize];
+        ByteBuffer out = ByteBuffer.wrap(frame);
+        if (direct) {
+            FrameCodec.writeHeader(out, Frame.TYPE_DIRECT, (byte) 0, 0, ttl, idHigh, idLow, payloadSize);
+            out.putLong(destinations[message] + 1);
+            node.router.send(frame, idHigh, idLow);
+        } else {
+            FrameCodec.writeHeader(out, Frame.TYPE_DATA, (byte) 0, 0, ttl, idHigh, idLow, payloadSize);
+            node.relay.originate(frame, idHigh, idLow);
+        }
+    }
+
+    private void deliver(byte[] frame) {
+        int message = (int) ByteBuffer.wrap(frame).getLong(Frame.OFFSET_ID_LOW) - 1;
+        deliveries++;
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        }
+        latencies[latencyCount++] = now - originTimes[message];
+    }
+
+    private void schedule(Event event) {
+        event.sequence = scheduled++;
+        events.add(event);
+    }
+
+    private void buildTopology() {
+        nodes = new SimNode[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new SimNode(i);
+        }
+        if ("grid".equals(topology)) {
+            int side = (int) Math.ceil(Math.sqrt(nodeCount));
+            for (int i = 0; i < nodeCount; i++) {
+                if ((i + 1) % side != 0 && i + 1 < nodeCount) connect(nodes[i], nodes[i + 1]);
+                if (i + side < nodeCount) connect(nodes[i], nodes[i + side]);
+            }
+        } else if ("geometric".equals(topology) || "cluster".equals(topology)) {
+            double[] x = new double[nodeCount];
+            double[] y = new double[nodeCount];
+            place(x, y, "cluster".equals(topology));
+            connectByRange(x, y, Math.sqrt(degree / (Math.PI * nodeCount)));
+        } else {
+            throw new IllegalArgumentException("Unknown topology " + topology + " (expected grid, geometric or cluster)");
+        }
+        TaskScheduler scheduler = (task, delayMillis) -> {
+            Event event = new Event(now + delayMillis * 1_000_000L);
+            event.task = task;
+            schedule(event);
+        };
+        for (SimNode node : nodes) {
+            NeighborTable neighbors = new NeighborTable();
+            for (SimLink link : node.links) {
+                long[] ids = new long[link.to.links.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = link.to.links.get(i).to.index + 1;
+                }
+                neighbors.update(link, link.to.index + 1, ids);
+            }
+            DedupCache seen = new DedupCache(Math.max(256, messageCount * 2), 10 * 60 * 1000L, () -> now);
+            Random nodeRandom = new Random(seed * 31 + node.index);
+            FrameSink delivery = frame -> {
+                deliver(frame);
+                return true;
+            };
+            node.relay = new MeshRelay(seen, node.links, delivery, forwarding.create(nodeRandom, scheduler, neighbors));
+            node.routes = new RouteTable(node.index + 1, 24 * 60 * 60 * 1000L, () -> now);
+            for (SimLink link : node.links) {
+                node.routes.addNeighbor(link, link.to.index + 1);
+            }
+            node.router = new UnicastRouter(node.index + 1, node.routes, node.relay, delivery);
+        }
+    }
+
+    // Shortest-path routes towards every destination in use, from one BFS each.
+    private void buildRoutes() {
+        int[] distance = new int[nodeCount];
+        ArrayDeque<SimNode> pending = new ArrayDeque<>();
+        for (int destination : Arrays.stream(destinations).distinct().toArray()) {
+            Arrays.fill(distance, -1);
+            distance[destination] = 0;
+            pending.add(nodes[destination]);
+            while (!pending.isEmpty()) {
+                SimNode node = pending.poll();
+                for (SimLink link : node.links) {
+                    if (distance[link.to.index] < 0) {
+                        distance[link.to.index] = distance[node.index] + 1;
+                        if (distance[link.to.index] >= RouteTable.UNREACHABLE) {
+                            unroutable++;
+                        }
+                        link.to.routes.learn(destination + 1, link.reverse, distance[link.to.index]);
+                        pending.add(link.to);
+                    }
+                }
+            }
+        }
+    }
+
+    private void place(double[] x, double[] y, boolean clustered) {
+        int clusters = Math.max(1, nodeCount / 100);
+        double[] centerX = new double[clusters];
+        double[] centerY = new double[clusters];
+        for (int i = 0; i < clusters; i++) {
+            centerX[i] = random.nextDouble();
+            centerY[i] = random.nextDouble();
+        }
+        double spread = 0.25 / Math.sqrt(clusters);
+        for (int i = 0; i < nodeCount; i++) {
+            if (clustered) {
+                int cluster = random.nextInt(clusters);
+                x[i] = clamp(centerX[cluster] + random.nextGaussian() * spread);
+                y[i] = clamp(centerY[cluster] + random.nextGaussian() * spread);
+            } else {
+                x[i] = random.nextDouble();
+                y[i] = random.nextDouble();
+            }
+        }
+    }
+
+    // Nodes within range are paired closest first, so every node keeps its
+    // nearest neighbors when the per-node link limit cuts in.
+    private void connectByRange(double[] x, double[] y, double range) {
+        int cells = Math.max(1, (int) (1 / range));
+        List<List<Integer>> grid = new ArrayList<>();
+        for (int i = 0; i < cells * cells; i++) {
+            grid.add(new ArrayList<>());
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            grid.get(cell(x[i], cells) * cells + cell(y[i], cells)).add(i);
+        }
+        List<long[]> pairs = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            int cx = cell(x[i], cells);
+            int cy = cell(y[i], cells);
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    if (cx + dx < 0 || cx + dx >= cells || cy + dy < 0 || cy + dy >= cells) continue;
+                    for (int j : grid.get((cx + dx) * cells + cy + dy)) {
+                        double distance = Math.hypot(x[i] - x[j], y[i] - y[j]);
+                        if (j > i && distance <= range) {
+                            pairs.add(new long[] {Double.doubleToLongBits(distance), i, j});
+                        }
+                    }
+                }
+            }
+        }
+        pairs.sort((a, b) -> a[0] != b[0] ? Double.compare(Double.longBitsToDouble(a[0]), Double.longBitsToDouble(b[0]))
+                : a[1] != b[1] ? Long.compare(a[1], b[1]) : Long.compare(a[2], b[2]));
+        for (long[] pair : pairs) {
+            SimNode a = nodes[(int) pair[1]];
+            SimNode b = nodes[(int) pair[2]];
+            if (a.links.size() < maxLinks && b.links.size() < maxLinks) {
+                connect(a, b);
+            }
+        }
+    }
+
+    private static int cell(double coordinate, int cells) {
+        return Math.min(cells - 1, (int) (coordinate * cells));
+    }
+
+    private static double clamp(double coordinate) {
+        return Math.max(0, Math.min(Math.nextDown(1.0), coordinate));
+    }
+
+    private void connect(SimNode a, SimNode b) {
+        SimLink forward = new SimLink(a, b);
+        SimLink backward = new SimLink(b, a);
+        forward.reverse = backward;
+        backward.reverse = forward;
+        a.links.add(forward);
+        b.links.add(backward);
+        linkCount++;
+    }
+
+    private void findComponents() {
+        component = new int[nodeCount];
+        Arrays.fill(component, -1);
+        List<Integer> sizes = new ArrayList<>();
+        ArrayDeque<SimNode> pending = new ArrayDeque<>();
+        for (SimNode start : nodes) {
+            if (component[start.index] >= 0) continue;
+            int id = sizes.size();
+            int size = 0;
+            component[start.index] = id;
+            pending.add(start);
+            while (!pending.isEmpty()) {
+                SimNode node = pending.poll();
+                size++;
+                for (SimLink link : node.links) {
+                    if (component[link.to.index] < 0) {
+                        component[link.to.index] = id;
+                        pending.add(link.to);
+                    }
+                }
+            }
+            sizes.add(size);
+        }
+        componentSize = new int[sizes.size()];
+        for (int i = 0; i < componentSize.length; i++) {
+            componentSize[i] = sizes.get(i);
+        }
+    }
+
+    public void report(long wallNanos) {
+        long reachable = 0;
+        for (int message = 0; message < messageCount; message++) {
+            if (!direct) {
+                reachable += componentSize[component[origins[message]]] - 1;
+            } else if (component[origins[message]] == component[destinations[message]]) {
+                reachable++;
+            }
+        }
+        long possible = direct ? messageCount : (long) messageCount * (nodeCount - 1);
+        long[] sortedLatencies = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sortedLatencies);
+        long[] processed = new long[nodeCount];
+        long[] queues = new long[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            processed[i] = nodes[i].processed;
+            queues[i] = nodes[i].maxQueue;
+        }
+        Arrays.sort(processed);
+        Arrays.sort(queues);
+
+        long suppressed = 0;
+        long expired = 0;
+        long routed = 0;
+        long fallbacks = 0;
+        for (SimNode node : nodes) {
+            suppressed += node.relay.getSuppressed();
+            expired += node.relay.getExpired() + node.router.getExpired();
+            routed += node.router.getRouted();
+            fallbacks += node.router.getFallbacks();
+        }
+        System.out.printf("topology=%s nodes=%d links=%d avgDegree=%.2f components=%d seed=%d forwarding=%s ttl=%d%s%n",
+                topology, nodeCount, linkCount, 2.0 * linkCount / nodeCount, componentSize.length, seed,
+                forwarding.name().toLowerCase(), ttl, direct ? " direct" : "");
+        System.out.printf("messages=%d delivery=%.2f%% (%.2f%% of reachable)%n", messageCount,
+                100.0 * deliveries / Math.max(1, possible), 100.0 * deliveries / Math.max(1, reachable));
+        System.out.printf("transmissions/message=%.1f redundant/message=%.1f lost=%d queueDrops=%d%n",
+                (double) transmissions / messageCount, (double) (transmissions - deliveries) / messageCount, lost, queueDrops);
+        System.out.printf("suppressed/message=%.1f ttlExpired=%d%n", (double) suppressed / messageCount, expired);
+        if (direct) {
+            System.out.printf("unicast routed=%d fallbacks=%d pairsBeyondMaxMetric=%d (maxMetric=%d)%n",
+                    routed, fallbacks, unroutable, RouteTable.UNREACHABLE);
+        }
+        if (latencyCount > 0) {
+            System.out.printf("latency p50=%.1f ms p99=%.1f ms max=%.1f ms%n", percentile(sortedLatencies, 0.5) / 1e6,
+                    percentile(sortedLatencies, 0.99) / 1e6, sortedLatencies[latencyCount - 1] / 1e6);
+        }
+        System.out.printf("frames processed/node p50=%d p99=%d max=%d, tx queue/node p50=%d p99=%d max=%d%n",
+                percentile(processed, 0.5), percentile(processed, 0.99), processed[nodeCount - 1],
+                percentile(queues, 0.5), percentile(queues, 0.99), queues[nodeCount - 1]);
+        System.out.printf("simulated %.2f s in %.0f ms%n", now / 1e9, wallNanos / 1e6);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        long sequence;
+        SimLink via;
+        byte[] frame;
+        SimNode node;
+        int message;
+        Runnable task;
+
+        Event(long time) {
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return time != other.time ? Long.compare(time, other.time) : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final class SimNode {
+        final int index;
+        final List<SimLink> links = new ArrayList<>();
+        MeshRelay relay;
+        RouteTable routes;
+        UnicastRouter router;
+        long processed;
+        int maxQueue;
+
+        SimNode(int index) {
+            this.index = index;
+        }
+    }
+
+    // One direction of a radio link. Frames are serialized one after another
+    // at the link bandwidth; the finish times of frames still on the air make
+    // up the transmit queue.
+    private final class SimLink implements FrameSink {
+        final SimNode from;
+        final SimNode to;
+        SimLink reverse;
+        private final ArrayDeque<Long> finishTimes = new ArrayDeque<>();
+        private long busyUntil;
+
+        SimLink(SimNode from, SimNode to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean enqueue(byte[] frame) {
+            while (!finishTimes.isEmpty() && finishTimes.peekFirst() <= now) {
+                finishTimes.pollFirst();
+            }
+            if (finishTimes.size() >= queueCapacity) {
+                queueDrops++;
+                return false;
+            }
+            busyUntil = Math.max(now, busyUntil) + frame.length * 1_000_000_000L / bandwidth;
+            finishTimes.addLast(busyUntil);
+            from.maxQueue = Math.max(from.maxQueue, finishTimes.size());
+            transmissions++;
+            if (random.nextDouble() < loss) {
+                lost++;
+            } else {
+                Event event = new Event(busyUntil + latencyNanos);
+                event.via = this;
+                event.frame = frame;
+                schedule(event);
+            }
+            return true;
+        }
+    }
+}
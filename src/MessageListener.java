@@ -0,0 +1,12 @@
+import java.nio.file.Path;
+
+interface MessageListener {
+    void onMessage(long originNodeId, long sequence, String message);
+
+    default void onDirectMessage(long originNodeId, long sequence, String message) {
+        onMessage(originNodeId, sequence, message);
+    }
+
+    default void onFileReceived(long originNodeId, String name, Path file) {
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Pull-based metrics. Components keep their own LongAdders and Histograms
+// on the hot path; collectors registered here read them only when someone
+// scrapes, so recording never goes through the registry. The same samples
+// are rendered as Prometheus text and as a flat map for JMX.
+// Labels are passed preformatted, e.g. peer="1a2b", or null.
+final class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    interface Collector {
+        void collect(Sink sink);
+    }
+
+    interface Sink {
+        void counter(String name, String help, String labels, long value);
+
+        void gauge(String name, String help, String labels, double value);
+
+        void histogram(String name, String help, String labels, Histogram histogram);
+    }
+
+    public void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    public void unregister(Collector collector) {
+        collectors.remove(collector);
+    }
+
+    public void collect(Sink sink) {
+        for (Collector collector : collectors) {
+            collector.collect(sink);
+        }
+    }
+
+    // Prometheus text exposition format, version 0.0.4. Histograms are
+    // exported as summaries with fixed quantiles.
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        Set<String> described = new HashSet<>();
+        collect(new Sink() {
+            @Override
+            public void counter(String name, String help, String labels, long value) {
+                describe(name, help, "counter");
+                sample(name, labels, null, Long.toString(value));
+            }
+
+            @Override
+            public void gauge(String name, String help, String labels, double value) {
+                describe(name, help, "gauge");
+                sample(name, labels, null, format(value));
+            }
+
+            @Override
+            public void histogram(String name, String help, String labels, Histogram histogram) {
+                describe(name, help, "summary");
+                for (double quantile : QUANTILES) {
+                    sample(name, labels, "quantile=\"" + quantile + "\"",
+                            Long.toString(histogram.getValueAtPercentile(quantile * 100)));
+                }
+                sample(name + "_sum", labels, null, Long.toString(histogram.getSum()));
+                sample(name + "_count", labels, null, Long.toString(histogram.getCount()));
+            }
+
+            private void describe(String name, String help, String type) {
+                if (described.add(name)) {
+                    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                }
+            }
+
+            private void sample(String name, String labels, String extra, String value) {
+                out.append(name);
+                if (labels != null || extra != null) {
+                    out.append('{');
+                    if (labels != null) out.append(labels);
+                    if (labels != null && extra != null) out.append(',');
+                    if (extra != null) out.append(extra);
+                    out.append('}');
+                }
+                out.append(' ').append(value).append('\n');
+            }
+        });
+        return out.toString();
+    }
+
+    // Flat name{labels} -> value view; histograms expand to count, mean,
+    // p50, p99 and max.
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        collect(new Sink() {
+            @Override
+            public void counter(String name, String help, String labels, long value) {
+                values.put(key(name, labels), value);
+            }
+
+            @Override
+            public void gauge(String name, String help, String labels, double value) {
+                values.put(key(name, labels), value);
+            }
+
+            @Override
+            public void histogram(String name, String help, String labels, Histogram histogram) {
+                values.put(key(name + "_count", labels), histogram.getCount());
+                values.put(key(name + "_mean", labels), histogram.getMean());
+                values.put(key(name + "_p50", labels), histogram.getValueAtPercentile(50));
+                values.put(key(name + "_p99", labels), histogram.getValueAtPercentile(99));
+                values.put(key(name + "_max", labels), histogram.getMax());
+            }
+        });
+        return values;
+    }
+
+    private static String key(String name, String labels) {
+        return labels == null ? name : name + "{" + labels + "}";
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+}
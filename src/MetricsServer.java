@@ -0,0 +1,72 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+// Serves a MetricsRegistry in Prometheus text format on a loopback port.
+// An HTTP GET (Prometheus, curl) gets an HTTP response; a client that sends
+// nothing (nc) gets the bare text after a short wait.
+final class MetricsServer implements Closeable {
+    private static final int REQUEST_TIMEOUT_MS = 250;
+
+    private final MetricsRegistry registry;
+    private final ServerSocket serverSocket;
+
+    public MetricsServer(MetricsRegistry registry, int port) throws IOException {
+        this.registry = registry;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public boolean start(ConnectionRuntime runtime) {
+        runtime.register(this);
+        return runtime.submit("metrics", () -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    serve(socket);
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) Log.warn("Metrics request failed: %s", e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+        boolean http = false;
+        BufferedReader request = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        try {
+            String line = request.readLine();
+            http = line != null && (line.startsWith("GET ") || line.startsWith("HEAD "));
+            while (http && line != null && !line.isEmpty()) {
+                line = request.readLine();
+            }
+        } catch (SocketTimeoutException e) {
+            // Plain socket client
+        }
+        byte[] body = registry.toPrometheus().getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        if (http) {
+            out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\nContent-Length: "
+                    + body.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(body);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Node id of the peer on each link plus the node ids that peer reported as
+// its own neighbors in its last neighbor hello.
+final class NeighborTable {
+    private final Map<FrameSink, Entry> entries = new ConcurrentHashMap<>();
+
+    public void update(FrameSink link, long nodeId, long[] neighbors) {
+        long[] sorted = neighbors.clone();
+        Arrays.sort(sorted);
+        entries.put(link, new Entry(nodeId, sorted));
+    }
+
+    public void remove(FrameSink link) {
+        entries.remove(link);
+    }
+
+    // True if the peer on link is one of the announced neighbors of the peer on sender.
+    public boolean covers(FrameSink sender, FrameSink link) {
+        Entry from = entries.get(sender);
+        Entry to = entries.get(link);
+        return from != null && to != null && Arrays.binarySearch(from.neighbors, to.nodeId) >= 0;
+    }
+
+    public boolean isNeighbor(long nodeId) {
+        for (Entry entry : entries.values()) {
+            if (entry.nodeId == nodeId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // True if some peer announced nodeId as its neighbor, i.e. it is reachable in two hops.
+    public boolean isTwoHop(long nodeId) {
+        for (Entry entry : entries.values()) {
+            if (Arrays.binarySearch(entry.neighbors, nodeId) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        final long nodeId;
+        final long[] neighbors;
+
+        Entry(long nodeId, long[] neighbors) {
+            this.nodeId = nodeId;
+            this.neighbors = neighbors;
+        }
+    }
+}
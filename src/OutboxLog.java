@@ -0,0 +1,316 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+// Store-and-forward log of the frames this node originated or relayed, so
+// peers that connect later, or lost frames in flight, still receive them.
+// Frames are appended to fixed-size memory-mapped segment files. A position
+// is segment number * segment size + offset and only ever grows. Appends
+// just copy into the mapping; flush() forces dirty segments and the cursor
+// file to disk, so one sync covers every append since the previous flush.
+// Each peer (by node id) has a cursor: everything before it has been written
+// to that peer. Whole segments are deleted once their newest record expires
+// or the log exceeds its segment limit.
+// Record layout: length (4) || expiresAt millis (8) || encoded frame.
+final class OutboxLog implements Closeable {
+    static final int RECORD_HEADER = 12;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILE = "cursors";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long ttlMillis;
+    private final int maxSegments;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<Long, Long> cursors = new HashMap<>();
+    private Segment active;
+    private boolean cursorsDirty;
+    private long appended;
+    private long flushes;
+    private long deletedSegments;
+
+    interface RecordVisitor {
+        void visit(long position, long idHigh, long idLow);
+    }
+
+    public OutboxLog(Path directory, int segmentSize, long ttlMillis, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.ttlMillis = ttlMillis;
+        this.maxSegments = Math.max(2, maxSegments);
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+                    segments.put(sequence, Segment.open(file, sequence, segmentSize));
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring unexpected outbox file %s", name);
+                }
+            }
+        }
+        active = segments.isEmpty() ? roll(0) : segments.lastEntry().getValue();
+        loadCursors();
+        expire(System.currentTimeMillis());
+    }
+
+    // Returns the position of the record, or -1 if the frame cannot fit in a segment.
+    public synchronized long append(byte[] frame) throws IOException {
+        int recordSize = RECORD_HEADER + frame.length;
+        if (recordSize > segmentSize) {
+            return -1;
+        }
+        if (segmentSize - active.end < recordSize) {
+            active = roll(active.sequence + 1);
+        }
+        long position = active.sequence * segmentSize + active.end;
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        ByteBuffer record = active.buffer.duplicate();
+        record.position(active.end + 4);
+        record.putLong(expiresAt);
+        record.put(frame);
+        // Length goes in last so a torn record reads as the end of the segment.
+        active.buffer.putInt(active.end, frame.length);
+        active.end += recordSize;
+        active.newestExpiry = expiresAt;
+        active.dirty = true;
+        appended++;
+        return position;
+    }
+
+    public synchronized long getEnd() {
+        return active.sequence * segmentSize + active.end;
+    }
+
+    public synchronized long getStart() {
+        return segments.firstKey() * segmentSize;
+    }
+
+    // Passes up to maxRecords unexpired frames from position (but before
+    // limit) to the consumer and returns the position to continue from.
+    public synchronized long read(long position, long limit, int maxRecords, Consumer<byte[]> consumer) {
+        long now = System.currentTimeMillis();
+        position = Math.max(position, getStart());
+        int records = 0;
+        while (position < limit && records < maxRecords) {
+            long sequence = position / segmentSize;
+            Segment segment = segments.get(sequence);
+            int offset = (int) (position - sequence * segmentSize);
+            if (segment == null || offset >= segment.end) {
+                Long next = segments.higherKey(sequence);
+                if (next == null) {
+                    break;
+                }
+                position = next * segmentSize;
+                continue;
+            }
+            int length = segment.buffer.getInt(offset);
+            long expiresAt = segment.buffer.getLong(offset + 4);
+            if (expiresAt > now) {
+                byte[] frame = new byte[length];
+                ByteBuffer record = segment.buffer.duplicate();
+                record.position(offset + RECORD_HEADER);
+                record.get(frame);
+                consumer.accept(frame);
+                records++;
+            }
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    // Visits every unexpired record in log order with its message id.
+    public synchronized int forEach(RecordVisitor visitor) {
+        long now = System.currentTimeMillis();
+        int visited = 0;
+        for (Segment segment : segments.values()) {
+            for (int offset = 0; offset < segment.end; offset += RECORD_HEADER + segment.buffer.getInt(offset)) {
+                if (segment.buffer.getLong(offset + 4) > now) {
+                    int frame = offset + RECORD_HEADER;
+                    visitor.visit(segment.sequence * segmentSize + offset, segment.buffer.getLong(frame + Frame.OFFSET_ID_HIGH),
+                            segment.buffer.getLong(frame + Frame.OFFSET_ID_LOW));
+                    visited++;
+                }
+            }
+        }
+        return visited;
+    }
+
+    // Returns the frame recorded at position, or null if it has been deleted.
+    public synchronized byte[] get(long position) {
+        Segment segment = segments.get(position / segmentSize);
+        int offset = (int) (position % segmentSize);
+        if (segment == null || offset >= segment.end) {
+            return null;
+        }
+        byte[] frame = new byte[segment.buffer.getInt(offset)];
+        ByteBuffer record = segment.buffer.duplicate();
+        record.position(offset + RECORD_HEADER);
+        record.get(frame);
+        return frame;
+    }
+
+    public synchronized long getCursor(long peerNodeId) {
+        return Math.max(cursors.getOrDefault(peerNodeId, 0L), getStart());
+    }
+
+    public synchronized void setCursor(long peerNodeId, long position) {
+        Long previous = cursors.get(peerNodeId);
+        if (previous == null || position > previous) {
+            cursors.put(peerNodeId, position);
+            cursorsDirty = true;
+        }
+    }
+
+    // Forces outside the lock so appends carry on while the pages are written.
+    public void flush() {
+        List<Segment> dirty = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        }
+        for (Segment segment : dirty) {
+            segment.buffer.force();
+        }
+        synchronized (this) {
+            if (cursorsDirty) {
+                saveCursors();
+            }
+            expire(System.currentTimeMillis());
+            flushes++;
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "segments=" + segments.size() + " bytes=" + (getEnd() - getStart()) + " appended=" + appended
+                + " flushes=" + flushes + " deletedSegments=" + deletedSegments + " cursors=" + cursors.size();
+    }
+
+    private Segment roll(long sequence) throws IOException {
+        Segment segment = Segment.open(directory.resolve(String.format("%s%016x%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX)),
+                sequence, segmentSize);
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    private void expire(long now) {
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest.newestExpiry > now && segments.size() <= maxSegments) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(oldest.file);
+            } catch (IOException e) {
+                // Still mapped on some platforms; retried on the next flush
+                break;
+            }
+            segments.remove(oldest.sequence);
+            deletedSegments++;
+        }
+    }
+
+    private void loadCursors() throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(directory.resolve(CURSOR_FILE)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                cursors.put(in.readLong(), in.readLong());
+            }
+        } catch (NoSuchFileException e) {
+            // First start
+        }
+    }
+
+    private void saveCursors() {
+        Path temporary = directory.resolve(CURSOR_FILE + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                    DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel))) {
+                out.writeInt(cursors.size());
+                for (Map.Entry<Long, Long> cursor : cursors.entrySet()) {
+                    out.writeLong(cursor.getKey());
+                    out.writeLong(cursor.getValue());
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, directory.resolve(CURSOR_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            cursorsDirty = false;
+        } catch (IOException e) {
+            Log.warn("Failed to save outbox cursors: %s", e.getMessage());
+        }
+    }
+
+    private static final class Segment {
+        final Path file;
+        final long sequence;
+        final MappedByteBuffer buffer;
+        int end;
+        long newestExpiry;
+        volatile boolean dirty;
+
+        private Segment(Path file, long sequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path file, long sequence, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                Segment segment = new Segment(file, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                segment.recover(size);
+                return segment;
+            }
+        }
+
+        // Finds the end of the written records after a restart.
+        private void recover(int size) {
+            int offset = 0;
+            while (size - offset >= RECORD_HEADER) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || length > size - offset - RECORD_HEADER) {
+                    break;
+                }
+                newestExpiry = buffer.getLong(offset + 4);
+                offset += RECORD_HEADER + length;
+            }
+            end = offset;
+        }
+    }
+}
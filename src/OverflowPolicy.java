@@ -0,0 +1,5 @@
+enum OverflowPolicy {
+    DROP_OLDEST,
+    DROP_NEWEST,
+    DISCONNECT
+}
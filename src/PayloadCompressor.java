@@ -0,0 +1,80 @@
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw DEFLATE with a preset dictionary of common chat text, applied to the
+// plaintext before encryption. Deflater/Inflater instances hold native zlib
+// state, so one of each is kept per thread and reset between messages.
+// Compressed layout: original length (4 bytes) || deflated bytes.
+final class PayloadCompressor {
+    private static final int LENGTH_SIZE = 4;
+    // Later bytes are cheaper to reference, so the most common text goes last.
+    private static final byte[] DICTIONARY = ("https://www. .com thanks thank you please sorry okay ok sure "
+            + "tomorrow tonight today morning afternoon evening weekend meeting message phone call later soon "
+            + "where are you? what are you doing? how are you? I'm on my way. see you there. "
+            + "did you get my message? can you hear me? let me know when you're here. "
+            + "yes no maybe good great nice cool lol haha :) "
+            + "I will be there in a few minutes. I don't know. I think that's it. "
+            + "the and that this with have for not you are was but what can just will your from they ")
+            .getBytes(StandardCharsets.UTF_8);
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private PayloadCompressor() {}
+
+    // Writes the compressed form into output (which must hold length bytes)
+    // and returns its size, or -1 if it would not be smaller than the input.
+    public static int compress(byte[] input, int offset, int length, byte[] output) {
+        int limit = length - 1;
+        if (limit <= LENGTH_SIZE) {
+            return -1;
+        }
+        output[0] = (byte) (length >>> 24);
+        output[1] = (byte) (length >>> 16);
+        output[2] = (byte) (length >>> 8);
+        output[3] = (byte) length;
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        int written = LENGTH_SIZE;
+        while (!deflater.finished()) {
+            if (written >= limit) {
+                return -1;
+            }
+            written += deflater.deflate(output, written, limit - written);
+        }
+        return written;
+    }
+
+    public static byte[] decompress(byte[] input, int offset, int length) throws DataFormatException {
+        if (length < LENGTH_SIZE) {
+            throw new DataFormatException("Compressed payload too short");
+        }
+        int originalLength = (input[offset] & 0xFF) << 24 | (input[offset + 1] & 0xFF) << 16
+                | (input[offset + 2] & 0xFF) << 8 | (input[offset + 3] & 0xFF);
+        if (originalLength < 0 || originalLength > Frame.MAX_PAYLOAD) {
+            throw new DataFormatException("Invalid decompressed length " + originalLength);
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(input, offset + LENGTH_SIZE, length - LENGTH_SIZE);
+        byte[] output = new byte[originalLength];
+        int read = 0;
+        while (read < originalLength) {
+            int count = inflater.inflate(output, read, originalLength - read);
+            if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                break;
+            }
+            read += count;
+        }
+        if (read != originalLength) {
+            throw new DataFormatException("Decompressed " + read + " of " + originalLength + " bytes");
+        }
+        return output;
+    }
+}
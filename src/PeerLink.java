@@ -0,0 +1,301 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// One connected peer. Callers only enqueue encoded frames; a dedicated
+// writer drains the bounded queue so a stalled link never blocks fan-out.
+// The writer coalesces queued frames into one write and one flush. While the
+// link is busy (the previous batch held more than one frame) it also waits
+// up to maxBatchDelay for more to arrive; an idle link flushes at once so a
+// lone message pays no extra latency. Control frames (anything but chat
+// payloads) end the batch and are flushed right away.
+// For the outbox, the node stamps the link with the log position its live
+// traffic has reached; once the writer has flushed everything queued before
+// that stamp it becomes the drained mark, i.e. the peer's replay cursor.
+// Dropping a queued frame freezes the mark so the gap is replayed later; a
+// replay that completes without further drops clears the freeze.
+final class PeerLink implements FrameSink, Closeable {
+    private static final byte[] CLOSED = new byte[0];
+
+    private final String name;
+    private final LinkSession session;
+    private final Closeable resource;
+    private final OutputStream output;
+    private final ArrayBlockingQueue<byte[]> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxBatchFrames;
+    private final int maxBatchBytes;
+    private final long maxBatchDelayNanos;
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private volatile int maxDepth;
+    private volatile int maxBatch;
+    private volatile long logMark = -1;
+    private volatile long drainedMark = -1;
+    private volatile boolean marksFrozen;
+    private volatile long droppedBeforeReplay;
+    private volatile boolean replaying;
+    private volatile boolean outbound;
+    private volatile boolean closed;
+
+    public PeerLink(String name, LinkSession session, Closeable resource, OutputStream output, int capacity,
+            OverflowPolicy overflowPolicy) {
+        this(name, session, resource, output, capacity, overflowPolicy, MeshConfig.BATCH_MAX_FRAMES,
+                MeshConfig.BATCH_MAX_BYTES, MeshConfig.BATCH_DELAY_MICROS);
+    }
+
+    public PeerLink(String name, LinkSession session, Closeable resource, OutputStream output, int capacity,
+            OverflowPolicy overflowPolicy, int maxBatchFrames, int maxBatchBytes, long maxBatchDelayMicros) {
+        this.name = name;
+        this.session = session;
+        this.resource = resource;
+        this.output = output;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.maxBatchFrames = Math.max(1, maxBatchFrames);
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchDelayNanos = maxBatchDelayMicros * 1000L;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LinkSession getSession() {
+        return session;
+    }
+
+    @Override
+    public boolean enqueue(byte[] frame) {
+        if (closed) {
+            return false;
+        }
+        while (!queue.offer(frame)) {
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    if (queue.poll() != null) {
+                        dropped.increment();
+                        marksFrozen = true;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    dropped.increment();
+                    marksFrozen = true;
+                    return false;
+                case DISCONNECT:
+                    dropped.increment();
+                    Log.warn("Outbound queue full for %s, disconnecting", name);
+                    close();
+                    return false;
+            }
+        }
+        enqueued.increment();
+        int depth = queue.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        return true;
+    }
+
+    public void runWriter() {
+        OutputStream batch = new BufferedOutputStream(output, Math.max(maxBatchBytes, 512));
+        try {
+            boolean running = true;
+            int lastBatch = 0;
+            while (running) {
+                byte[] frame = queue.take();
+                if (frame == CLOSED || closed) {
+                    break;
+                }
+                long deadline = lastBatch > 1 ? System.nanoTime() + maxBatchDelayNanos : 0;
+                int frames = 0;
+                int bytes = 0;
+                while (true) {
+                    batch.write(frame);
+                    frames++;
+                    bytes += frame.length;
+                    if (isControl(frame) || frames >= maxBatchFrames || bytes >= maxBatchBytes) {
+                        break;
+                    }
+                    frame = queue.poll();
+                    if (frame == null) {
+                        long remaining = deadline == 0 ? 0 : deadline - System.nanoTime();
+                        frame = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (frame == null) {
+                            break;
+                        }
+                    }
+                    if (frame == CLOSED) {
+                        running = false;
+                        break;
+                    }
+                }
+                batch.flush();
+                long mark = logMark;
+                if (!marksFrozen && queue.isEmpty()) {
+                    drainedMark = mark;
+                }
+                sent.add(frames);
+                bytesSent.add(bytes);
+                batches.increment();
+                lastBatch = frames;
+                if (frames > maxBatch) {
+                    maxBatch = frames;
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // The peer closed the link first; its reader reports the disconnect.
+            close();
+        } catch (IOException e) {
+            if (!closed) Log.warn("Write error to %s: %s", name, e.getMessage());
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        queue.offer(CLOSED);
+        try {
+            output.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        try {
+            resource.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static boolean isControl(byte[] frame) {
+        byte type = frame[Frame.OFFSET_TYPE];
+        return type != Frame.TYPE_DATA && type != Frame.TYPE_DIRECT && type != Frame.TYPE_BULK;
+    }
+
+    // Set after the frames up to this log position have been enqueued.
+    public void setLogMark(long position) {
+        logMark = position;
+    }
+
+    // A replay brought the peer up to this log position. Unless frames were
+    // dropped since the replay started, the mark may move again.
+    public void replayedTo(long position) {
+        logMark = position;
+        if (dropped.sum() == droppedBeforeReplay) {
+            marksFrozen = false;
+        }
+    }
+
+    public boolean isMarksFrozen() {
+        return marksFrozen;
+    }
+
+    public long getDrainedMark() {
+        return drainedMark;
+    }
+
+    // True if this end dialed the link.
+    public boolean isOutbound() {
+        return outbound;
+    }
+
+    public void setOutbound(boolean outbound) {
+        this.outbound = outbound;
+    }
+
+    public boolean isReplaying() {
+        return replaying;
+    }
+
+    public void setReplaying(boolean replaying) {
+        if (replaying && !this.replaying) {
+            droppedBeforeReplay = dropped.sum();
+        }
+        this.replaying = replaying;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    // Called by the reader for every frame that arrives on this link.
+    public void recordReceived(int bytes) {
+        received.increment();
+        bytesReceived.add(bytes);
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public double getAverageBatch() {
+        long count = getBatches();
+        return count == 0 ? 0 : (double) getSent() / count;
+    }
+
+    @Override
+    public String toString() {
+        return name + (session != null ? String.format(" node=%x setup=%.1fms%s", session.getRemoteNodeId(),
+                session.getSetupMillis(), session.isResumed() ? " (resumed)" : "") : "")
+                + " queue=" + getQueueDepth() + "/" + getQueueCapacity() + " max=" + maxDepth
+                + " enqueued=" + getEnqueued() + " sent=" + getSent() + " dropped=" + getDropped()
+                + String.format(" batch avg=%.1f max=%d", getAverageBatch(), maxBatch);
+    }
+}
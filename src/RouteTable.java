@@ -0,0 +1,156 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+// Distance-vector routes to other nodes, keyed by node id. A linked peer is
+// one hop away for as long as its link is up; everything else is learned
+// from neighbors' route advertisements or from the hop count of frames an
+// origin sent, and expires unless refreshed. Advertisements use split
+// horizon with poisoned reverse so two nodes never route through each other.
+// Advertisement entry: destination node id (8 bytes) || metric (1 byte).
+// Destinations UNREACHABLE or more hops away are not routed at all; see
+// MeshConfig.ROUTE_MAX_METRIC.
+final class RouteTable {
+    public static final int UNREACHABLE = MeshConfig.ROUTE_MAX_METRIC;
+    static final int ENTRY_SIZE = 9;
+
+    private final long localNodeId;
+    private final long expiryNanos;
+    private final LongSupplier clock;
+    private final Map<Long, Route> routes = new HashMap<>();
+    private final Map<FrameSink, Long> neighbors = new HashMap<>();
+
+    public RouteTable(long localNodeId, long expiryMillis) {
+        this(localNodeId, expiryMillis, System::nanoTime);
+    }
+
+    RouteTable(long localNodeId, long expiryMillis, LongSupplier clock) {
+        this.localNodeId = localNodeId;
+        this.expiryNanos = expiryMillis * 1_000_000L;
+        this.clock = clock;
+    }
+
+    public synchronized void addNeighbor(FrameSink link, long nodeId) {
+        neighbors.put(link, nodeId);
+        routes.put(nodeId, new Route(link, 1, 0, true));
+    }
+
+    public synchronized void removeNeighbor(FrameSink link) {
+        neighbors.remove(link);
+        routes.values().removeIf(route -> route.nextHop == link);
+    }
+
+    // Returns true if the table changed.
+    public synchronized boolean learn(long destination, FrameSink via, int metric) {
+        if (destination == localNodeId || !neighbors.containsKey(via)) {
+            return false;
+        }
+        long now = clock.getAsLong();
+        Route current = routes.get(destination);
+        if (metric >= UNREACHABLE) {
+            if (current != null && !current.direct && current.nextHop == via) {
+                routes.remove(destination);
+                return true;
+            }
+            return false;
+        }
+        if (current == null || current.isExpired(now) || metric < current.metric
+                || (current.nextHop == via && !current.direct)) {
+            boolean changed = current == null || current.nextHop != via || current.metric != metric;
+            routes.put(destination, new Route(via, metric, now + expiryNanos, false));
+            return changed;
+        }
+        return false;
+    }
+
+    public synchronized FrameSink nextHop(long destination) {
+        Route route = routes.get(destination);
+        if (route == null) {
+            return null;
+        }
+        if (route.isExpired(clock.getAsLong())) {
+            routes.remove(destination);
+            return null;
+        }
+        return route.nextHop;
+    }
+
+    public synchronized int metric(long destination) {
+        Route route = routes.get(destination);
+        return route == null || route.isExpired(clock.getAsLong()) ? UNREACHABLE : route.metric;
+    }
+
+    public synchronized byte[] encodeAdvertisement(FrameSink to) {
+        purgeExpired();
+        Long recipient = neighbors.get(to);
+        ByteBuffer out = ByteBuffer.allocate(routes.size() * ENTRY_SIZE);
+        for (Map.Entry<Long, Route> entry : routes.entrySet()) {
+            if (entry.getKey().equals(recipient)) {
+                continue;
+            }
+            Route route = entry.getValue();
+            out.putLong(entry.getKey());
+            out.put((byte) (route.nextHop == to ? UNREACHABLE : route.metric));
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    // Returns true if any route changed.
+    public boolean applyAdvertisement(FrameSink from, ByteBuffer payload) {
+        boolean changed = false;
+        while (payload.remaining() >= ENTRY_SIZE) {
+            long destination = payload.getLong();
+            int metric = payload.get() & 0xFF;
+            changed |= learn(destination, from, Math.min(metric + 1, UNREACHABLE));
+        }
+        return changed;
+    }
+
+    public synchronized int size() {
+        purgeExpired();
+        return routes.size();
+    }
+
+    public synchronized void print(PrintStream out) {
+        purgeExpired();
+        long now = clock.getAsLong();
+        for (Map.Entry<Long, Route> entry : routes.entrySet()) {
+            Route route = entry.getValue();
+            Long nextHop = neighbors.get(route.nextHop);
+            out.println(String.format("  %016x via %016x, %d hop%s%s", entry.getKey(), nextHop != null ? nextHop : 0L,
+                    route.metric, route.metric == 1 ? "" : "s",
+                    route.direct ? "" : String.format(", expires in %ds", (route.expiresAt - now) / 1_000_000_000L)));
+        }
+    }
+
+    private void purgeExpired() {
+        long now = clock.getAsLong();
+        for (Iterator<Route> it = routes.values().iterator(); it.hasNext(); ) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Route {
+        final FrameSink nextHop;
+        final int metric;
+        final long expiresAt;
+        final boolean direct;
+
+        Route(FrameSink nextHop, int metric, long expiresAt, boolean direct) {
+            this.nextHop = nextHop;
+            this.metric = metric;
+            this.expiresAt = expiresAt;
+            this.direct = direct;
+        }
+
+        boolean isExpired(long now) {
+            return !direct && now - expiresAt >= 0;
+        }
+    }
+}
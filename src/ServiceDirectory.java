@@ -0,0 +1,136 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Persistent cache of resolved service URLs keyed by Bluetooth address, so
+// reconnecting to a known peer skips inquiry and SDP. Entries older than the
+// TTL are ignored and dropped on the next save. One tab-separated line per
+// entry: address, resolvedAt millis, url, name.
+final class ServiceDirectory {
+    private final Path file;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    static final class Entry {
+        private final String address;
+        private final String url;
+        private final String name;
+        private final long resolvedAt;
+
+        Entry(String address, String url, String name, long resolvedAt) {
+            this.address = address;
+            this.url = url;
+            this.name = name;
+            this.resolvedAt = resolvedAt;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getResolvedAt() {
+            return resolvedAt;
+        }
+    }
+
+    public ServiceDirectory(Path file, long ttlMillis) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        load();
+    }
+
+    public synchronized Entry lookup(String address) {
+        Entry entry = entries.get(address);
+        return entry != null && isFresh(entry, System.currentTimeMillis()) ? entry : null;
+    }
+
+    // Fresh entries, most recently resolved first.
+    public synchronized List<Entry> getEntries() {
+        long now = System.currentTimeMillis();
+        List<Entry> fresh = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (isFresh(entry, now)) {
+                fresh.add(0, entry);
+            }
+        }
+        return fresh;
+    }
+
+    public synchronized Entry put(String address, String name, String url) {
+        Entry entry = new Entry(address, url, name, System.currentTimeMillis());
+        entries.remove(address);
+        entries.put(address, entry);
+        save();
+        return entry;
+    }
+
+    public synchronized void remove(String address) {
+        if (entries.remove(address) != null) {
+            save();
+        }
+    }
+
+    private boolean isFresh(Entry entry, long now) {
+        return now - entry.getResolvedAt() < ttlMillis;
+    }
+
+    private void load() {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) {
+                    continue;
+                }
+                try {
+                    entries.put(fields[0], new Entry(fields[0], fields[2], fields[3], Long.parseLong(fields[1])));
+                } catch (NumberFormatException e) {
+                    Log.warn("Skipping malformed directory entry for %s", fields[0]);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing cached yet
+        } catch (IOException e) {
+            Log.warn("Failed to load service directory: %s", e.getMessage());
+        }
+    }
+
+    private void save() {
+        long now = System.currentTimeMillis();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Entry entry : entries.values()) {
+                    if (isFresh(entry, now)) {
+                        writer.write(entry.getAddress() + "\t" + entry.getResolvedAt() + "\t" + entry.getUrl() + "\t"
+                                + entry.getName().replace('\t', ' ').replace('\n', ' '));
+                        writer.newLine();
+                    }
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.warn("Failed to save service directory: %s", e.getMessage());
+        }
+    }
+}
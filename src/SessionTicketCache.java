@@ -0,0 +1,126 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Resumption tickets keyed by remote node id, which stays the same across
+// reconnects; transport addresses do not (an accepted TCP link shows the
+// peer's ephemeral port). Dialers only know the address they dial, so the
+// address a ticket was last dialed at is kept as a hint to its node id.
+// Bounded LRU with a fixed lifetime per ticket; lookups that find an expired
+// ticket drop it.
+final class SessionTicketCache {
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<Long, Ticket> tickets;
+    private final LinkedHashMap<String, Long> dialedNodes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    public SessionTicketCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.tickets = new LinkedHashMap<Long, Ticket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Ticket> eldest) {
+                return size() > SessionTicketCache.this.capacity;
+            }
+        };
+        this.dialedNodes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > SessionTicketCache.this.capacity;
+            }
+        };
+    }
+
+    public synchronized Ticket get(long remoteNodeId) {
+        Ticket ticket = tickets.get(remoteNodeId);
+        if (ticket == null) {
+            misses.increment();
+            return null;
+        }
+        if (System.nanoTime() - ticket.issuedAt >= ttlNanos) {
+            tickets.remove(remoteNodeId);
+            expired.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return ticket;
+    }
+
+    // The ticket for the node last reached by dialing this address.
+    public synchronized Ticket getDialed(String address) {
+        Long remoteNodeId = dialedNodes.get(address);
+        if (remoteNodeId == null) {
+            misses.increment();
+            return null;
+        }
+        return get(remoteNodeId);
+    }
+
+    // dialedAddress is null for accepted links.
+    public synchronized void put(Ticket ticket, String dialedAddress) {
+        tickets.put(ticket.remoteNodeId, ticket);
+        if (dialedAddress != null) {
+            dialedNodes.put(dialedAddress, ticket.remoteNodeId);
+        }
+    }
+
+    public synchronized void remove(long remoteNodeId) {
+        tickets.remove(remoteNodeId);
+    }
+
+    public synchronized int size() {
+        long now = System.nanoTime();
+        for (Iterator<Ticket> it = tickets.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().issuedAt >= ttlNanos) {
+                it.remove();
+                expired.increment();
+            }
+        }
+        return tickets.size();
+    }
+
+    public void recordFallback() {
+        fallbacks.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "tickets=" + size() + "/" + capacity + " hits=" + getHits() + " misses=" + getMisses()
+                + " expired=" + getExpired() + " fallbacks=" + getFallbacks() + " resumed=" + (getHits() - getFallbacks());
+    }
+
+    static final class Ticket {
+        final byte[] id;
+        final byte[] psk;
+        final long remoteNodeId;
+        final long issuedAt = System.nanoTime();
+
+        Ticket(byte[] id, byte[] psk, long remoteNodeId) {
+            this.id = id;
+            this.psk = psk;
+            this.remoteNodeId = remoteNodeId;
+        }
+    }
+}
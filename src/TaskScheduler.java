@@ -0,0 +1,5 @@
+// Runs a task once after a delay. ConnectionRuntime backs this with a timer
+// thread; the simulator backs it with virtual time.
+interface TaskScheduler {
+    void schedule(Runnable task, long delayMillis);
+}
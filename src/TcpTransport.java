@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// TCP transport for running several nodes on one machine or LAN without
+// radios. Blocking sockets fit the thread-per-link runtime (on JDK 13+ they
+// are backed by the NIO socket implementation). Addresses are host:port.
+final class TcpTransport implements Transport {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String host;
+    private final int port;
+
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public String getName() {
+        return "tcp";
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(host, port));
+        return new TransportServer() {
+            @Override
+            public String getLocalAddress() {
+                return host + ":" + serverSocket.getLocalPort();
+            }
+
+            @Override
+            public TransportChannel accept() throws IOException {
+                return new Channel(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportChannel connect(String address) throws IOException {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IOException("Expected host:port but got " + address);
+        }
+        int remotePort;
+        try {
+            remotePort = Integer.parseInt(address.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid port in " + address);
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.substring(0, separator), remotePort), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new Channel(socket);
+    }
+
+    private static final class Channel implements TransportChannel {
+        private final Socket socket;
+
+        Channel(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+import java.io.IOException;
+
+interface Transport {
+    String getName();
+
+    TransportServer listen() throws IOException;
+
+    TransportChannel connect(String address) throws IOException;
+}
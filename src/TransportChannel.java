@@ -0,0 +1,14 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+interface TransportChannel extends Closeable {
+    String getRemoteAddress();
+
+    String getRemoteName();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+}
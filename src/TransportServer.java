@@ -0,0 +1,8 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+interface TransportServer extends Closeable {
+    String getLocalAddress();
+
+    TransportChannel accept() throws IOException;
+}
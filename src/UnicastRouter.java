@@ -0,0 +1,95 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Carries addressed frames hop by hop along the route table instead of
+// flooding them. The destination node id is the first 8 payload bytes.
+// Frames with no known route fall back to the broadcast strategy so they
+// still arrive, just not cheaply. Shares the relay's duplicate filter.
+final class UnicastRouter {
+    public static final int DESTINATION_SIZE = 8;
+
+    private final long localNodeId;
+    private final RouteTable routes;
+    private final MeshRelay relay;
+    private final FrameSink delivery;
+    private final LongAdder routed = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    public UnicastRouter(long localNodeId, RouteTable routes, MeshRelay relay, FrameSink delivery) {
+        this.localNodeId = localNodeId;
+        this.routes = routes;
+        this.relay = relay;
+        this.delivery = delivery;
+    }
+
+    public static long getDestination(byte[] encoded) {
+        long destination = 0;
+        for (int i = 0; i < DESTINATION_SIZE; i++) {
+            destination = destination << 8 | (encoded[Frame.HEADER_SIZE + i] & 0xFF);
+        }
+        return destination;
+    }
+
+    public boolean route(Frame frame, FrameSink from) {
+        if (frame.getPayloadLength() < DESTINATION_SIZE || !relay.getSeen().markSeen(frame.getIdHigh(), frame.getIdLow())) {
+            return false;
+        }
+        byte[] encoded = frame.copyEncoded();
+        if (getDestination(encoded) == localNodeId) {
+            delivered.increment();
+            if (delivery != null) {
+                delivery.enqueue(encoded);
+            }
+            return true;
+        }
+        int hops = frame.getHops() + 1;
+        if (hops >= frame.getTtl()) {
+            expired.increment();
+            return false;
+        }
+        FrameCodec.setHops(encoded, hops);
+        boolean forwarded = forward(encoded, from);
+        relay.archive(encoded);
+        return forwarded;
+    }
+
+    public boolean send(byte[] encoded, long idHigh, long idLow) {
+        relay.getSeen().markSeen(idHigh, idLow);
+        boolean forwarded = forward(encoded, null);
+        relay.archive(encoded);
+        return forwarded;
+    }
+
+    private boolean forward(byte[] encoded, FrameSink from) {
+        FrameSink next = routes.nextHop(getDestination(encoded));
+        if (next != null && next != from && relay.forwardTo(next, encoded)) {
+            routed.increment();
+            return true;
+        }
+        fallbacks.increment();
+        return relay.forward(encoded, from) > 0;
+    }
+
+    public long getRouted() {
+        return routed.sum();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "routes=" + routes.size() + " routed=" + getRouted() + " fallbacks=" + getFallbacks()
+                + " delivered=" + getDelivered() + " ttlExpired=" + getExpired();
+    }
+}